@@ -0,0 +1,337 @@
+package depth;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import com.sun.management.ThreadMXBean;
+
+import depth.Picture3D.RenderMode;
+
+/**
+ * Micro benchmarks for rendering, depth editing, and painting on synthetic
+ * image and depth pairs. Every benchmark is warmed up and then measured in
+ * several timed iterations. Next to the throughput the allocation rate and
+ * the garbage collector activity during the measurement are reported.
+ * <p>
+ * Usage: <code>Benchmarks [-only prefix] [megapixels...]</code>
+ */
+public class Benchmarks {
+
+  private static final long ITERATION_NANOS = 1000000000L;
+
+  private static final int WARMUP = 3;
+
+  private static final int ITERATIONS = 5;
+
+  /**
+   * A single benchmark.
+   */
+  private abstract static class Bench {
+
+    final String name;
+
+    Bench(final String name) {
+      this.name = name;
+    }
+
+    /**
+     * Runs one operation.
+     * 
+     * @return The number of units processed by the operation.
+     */
+    abstract long op();
+
+  }
+
+  private static final ThreadMXBean THREADS =
+      (ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+  /**
+   * Creates a synthetic image of the given size.
+   * 
+   * @param w The width.
+   * @param h The height.
+   * @param seed The seed.
+   * @return The image.
+   */
+  public static BufferedImage syntheticImage(final int w, final int h,
+      final long seed) {
+    final Random r = new Random(seed);
+    final BufferedImage img = new BufferedImage(w, h,
+        BufferedImage.TYPE_INT_RGB);
+    final int[] line = new int[w];
+    for(int y = 0; y < h; ++y) {
+      for(int x = 0; x < w; ++x) {
+        final int red = (x * 255 / w + r.nextInt(16)) & 0xff;
+        final int green = (y * 255 / h + r.nextInt(16)) & 0xff;
+        final int blue = (x + y) / 7 & 0xff;
+        line[x] = red << 16 | green << 8 | blue;
+      }
+      img.setRGB(0, y, w, 1, line, 0, w);
+    }
+    return img;
+  }
+
+  /**
+   * Creates a synthetic depth map of smooth hills with some noise.
+   * 
+   * @param w The width.
+   * @param h The height.
+   * @param seed The seed.
+   * @return The depth map.
+   */
+  public static BufferedImage syntheticDepth(final int w, final int h,
+      final long seed) {
+    final Random r = new Random(seed);
+    final BufferedImage img = new BufferedImage(w, h,
+        BufferedImage.TYPE_BYTE_GRAY);
+    final int[] line = new int[w];
+    for(int y = 0; y < h; ++y) {
+      for(int x = 0; x < w; ++x) {
+        final double v = Math.sin(x * 12.0 / w) * Math.cos(y * 9.0 / h);
+        line[x] = Math.max(0, Math.min(255, (int) (128 + 100 * v)
+            + r.nextInt(9) - 4));
+      }
+      img.getRaster().setSamples(0, y, w, 1, 0, line);
+    }
+    return img;
+  }
+
+  private static long allocatedBytes() {
+    final long[] ids = THREADS.getAllThreadIds();
+    long sum = 0;
+    for(final long a : THREADS.getThreadAllocatedBytes(ids)) {
+      if(a > 0) {
+        sum += a;
+      }
+    }
+    return sum;
+  }
+
+  private static long[] gcStats() {
+    long count = 0;
+    long time = 0;
+    for(final GarbageCollectorMXBean gc : ManagementFactory
+        .getGarbageCollectorMXBeans()) {
+      count += Math.max(0, gc.getCollectionCount());
+      time += Math.max(0, gc.getCollectionTime());
+    }
+    return new long[] { count, time};
+  }
+
+  private static double[] iteration(final Bench b) {
+    final long start = System.nanoTime();
+    long units = 0;
+    long now;
+    do {
+      units += b.op();
+      now = System.nanoTime();
+    } while(now - start < ITERATION_NANOS);
+    return new double[] { units * 1e9 / (now - start), now - start};
+  }
+
+  private static void run(final Bench b, final String param) {
+    for(int i = 0; i < WARMUP; ++i) {
+      iteration(b);
+    }
+    final long[] gc = gcStats();
+    final long alloc = allocatedBytes();
+    final double[] rates = new double[ITERATIONS];
+    double nanos = 0;
+    double units = 0;
+    for(int i = 0; i < ITERATIONS; ++i) {
+      final double[] res = iteration(b);
+      rates[i] = res[0];
+      nanos += res[1];
+      units += res[0] * res[1] / 1e9;
+    }
+    final long bytes = allocatedBytes() - alloc;
+    final long[] gcEnd = gcStats();
+    double mean = 0;
+    for(final double r : rates) {
+      mean += r;
+    }
+    mean /= ITERATIONS;
+    double var = 0;
+    for(final double r : rates) {
+      var += (r - mean) * (r - mean);
+    }
+    final double err = Math.sqrt(var / (ITERATIONS - 1));
+    System.out.println(String.format(
+        "%-32s %-12s %14.1f +- %-10.1f %10.1f MB/s %12.1f B/op %4d gc %6d ms",
+        b.name, param, mean, err, bytes / nanos * 1e9 / (1 << 20), bytes
+            / units, gcEnd[0] - gc[0], gcEnd[1] - gc[1]));
+  }
+
+  private static List<Bench> benches(final int w, final int h) {
+    final List<Bench> res = new ArrayList<Bench>();
+    final BufferedImage img = syntheticImage(w, h, 42);
+    final BufferedImage depth = syntheticDepth(w, h, 43);
+    for(final RenderMode mode : RenderMode.values()) {
+      final Picture3D pic = new Picture3D(img, depth);
+      pic.setRenderMode(mode);
+      res.add(new Bench("updateLine " + mode) {
+
+        private int y;
+
+        @Override
+        long op() {
+          pic.updateLine(y);
+          y = (y + 1) % h;
+          return 1;
+        }
+
+      });
+      final Picture3D scalar = new Picture3D(img, depth);
+      scalar.setRenderMode(mode);
+      scalar.setRunKernel(false);
+      res.add(new Bench("updateLine scalar " + mode) {
+
+        private int y;
+
+        @Override
+        long op() {
+          scalar.updateLine(y);
+          y = (y + 1) % h;
+          return 1;
+        }
+
+      });
+      res.add(new Bench("render " + mode) {
+
+        @Override
+        long op() {
+          pic.render();
+          return 1;
+        }
+
+      });
+      res.add(new Bench("update " + mode) {
+
+        @Override
+        long op() {
+          renderParallel(pic);
+          return 1;
+        }
+
+      });
+    }
+    final Picture depthPic = new Picture(depth);
+    final Picture3D pic = new Picture3D(new Picture(img), depthPic);
+    pic.render();
+    for(final int radius : new int[] { 5, 20, 50, 100}) {
+      res.add(new Bench("editDepth r=" + radius) {
+
+        private final Random rnd = new Random(radius);
+
+        @Override
+        long op() {
+          depthPic.editDepth(rnd.nextInt(w), rnd.nextInt(h), radius,
+              rnd.nextBoolean() ? 25.0 : -25.0, pic);
+          return 1;
+        }
+
+      });
+    }
+    for(final double zoom : new double[] { 1, 0.25, 0.05}) {
+      final Canvas canvas = new Canvas(new Painter() {
+
+        @Override
+        public void draw(final Graphics2D g) {
+          pic.draw(g);
+        }
+
+        @Override
+        public void drawStatic(final Graphics2D g) {
+          // nothing to draw
+        }
+
+      }, 1280, 800);
+      canvas.setSize(1280, 800);
+      canvas.zoomTo(0, 0, zoom);
+      final BufferedImage screen = new BufferedImage(1280, 800,
+          BufferedImage.TYPE_INT_RGB);
+      res.add(new Bench("paintComponent zoom=" + zoom) {
+
+        @Override
+        long op() {
+          canvas.repaint();
+          final Graphics2D g = screen.createGraphics();
+          canvas.paintComponent(g);
+          g.dispose();
+          return 1;
+        }
+
+      });
+    }
+    return res;
+  }
+
+  /**
+   * Renders all lines in bands on the render scheduler and waits for them.
+   * 
+   * @param pic The picture.
+   */
+  static void renderParallel(final Picture3D pic) {
+    final int h = pic.getHeight();
+    final int band = RenderScheduler.bandSize(h);
+    final CountDownLatch done = new CountDownLatch((h + band - 1) / band);
+    for(int y = 0; y < h; y += band) {
+      final int start = y;
+      final int end = Math.min(y + band, h);
+      RenderScheduler.execute(new Runnable() {
+
+        @Override
+        public void run() {
+          for(int row = start; row < end; ++row) {
+            pic.updateLine(row);
+          }
+          done.countDown();
+        }
+
+      });
+    }
+    try {
+      done.await();
+    } catch(final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  public static final void main(final String[] args) {
+    System.setProperty("java.awt.headless", "true");
+    THREADS.setThreadAllocatedMemoryEnabled(true);
+    String only = "";
+    final List<Double> sizes = new ArrayList<Double>();
+    for(int i = 0; i < args.length; ++i) {
+      if(args[i].equals("-only")) {
+        only = args[++i];
+      } else {
+        sizes.add(Double.parseDouble(args[i]));
+      }
+    }
+    if(sizes.isEmpty()) {
+      sizes.add(1.0);
+      sizes.add(4.0);
+      sizes.add(12.0);
+    }
+    System.out.println(String.format("%-32s %-12s %27s %15s %17s",
+        "benchmark", "size", "units/s", "alloc", "alloc/unit"));
+    for(final double mp : sizes) {
+      final int w = (int) Math.sqrt(mp * 1e6 * 4 / 3);
+      final int h = (int) (mp * 1e6 / w);
+      for(final Bench b : benches(w, h)) {
+        if(b.name.startsWith(only)) {
+          run(b, mp + "MP");
+        }
+      }
+    }
+  }
+
+}
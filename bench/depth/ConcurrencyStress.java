@@ -0,0 +1,115 @@
+package depth;
+
+import java.util.Random;
+
+import depth.Picture3D.RenderMode;
+
+/**
+ * Applies random brush dabs while other threads keep rendering the picture
+ * line by line, and checks the picture against a fresh render of the depth
+ * map after every round of dabs. The renderers stop right when the editor is
+ * done, so a line that a renderer read before an edit changed it and
+ * published after the edit re-rendered it shows up as a difference. The
+ * picture is wide and short so that the dabs and the renderers meet on the
+ * same lines all the time.
+ * <p>
+ * Usage: <code>ConcurrencyStress [width] [height] [rounds] [render threads]
+ * [render mode]</code>
+ */
+public class ConcurrencyStress {
+
+  private static final int DABS = 20;
+
+  public static final void main(final String[] args)
+      throws InterruptedException {
+    System.setProperty("java.awt.headless", "true");
+    final int w = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+    final int h = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+    final int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 300;
+    final int threads = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+    final RenderMode mode = args.length > 4 ? RenderMode.valueOf(args[4])
+        : RenderMode.SORTED_BLUR_LOG;
+    final Picture img = new Picture(Benchmarks.syntheticImage(w, h, 1));
+    final Picture depth = new Picture(Benchmarks.syntheticDepth(w, h, 2));
+    final Picture3D pic = new Picture3D(img, depth);
+    pic.setRenderMode(mode);
+    pic.render();
+    final DepthEditor editor = new DepthEditor();
+    final Random rnd = new Random(3);
+    final long start = System.nanoTime();
+    int failed = 0;
+    long lines = 0;
+    for(int r = 0; r < rounds; ++r) {
+      final boolean[] running = { true};
+      final long[] rendered = new long[threads];
+      final Thread[] renderers = new Thread[threads];
+      for(int i = 0; i < threads; ++i) {
+        final int id = i;
+        renderers[i] = new Thread("renderer " + i) {
+
+          @Override
+          public void run() {
+            int y = id * h / threads;
+            for(;;) {
+              synchronized(running) {
+                if(!running[0]) {
+                  return;
+                }
+              }
+              pic.updateLine(y);
+              ++rendered[id];
+              y = (y + 1) % h;
+            }
+          }
+
+        };
+        renderers[i].start();
+      }
+      final long done = editor.getDabs() + DABS;
+      for(int i = 0; i < DABS; ++i) {
+        editor.edit(depth, pic, rnd.nextInt(w), rnd.nextInt(h),
+            5 + rnd.nextInt(40), rnd.nextBoolean() ? 25 : -25);
+      }
+      while(editor.getDabs() < done) {
+        Thread.yield();
+      }
+      synchronized(running) {
+        running[0] = false;
+      }
+      for(int i = 0; i < threads; ++i) {
+        renderers[i].join();
+        lines += rendered[i];
+      }
+      final int diff = diff(pic, img, depth, mode);
+      if(diff > 0) {
+        ++failed;
+        System.out.println("round " + r + ": " + diff + " pixels differ");
+      }
+    }
+    System.out.println(String.format(
+        "%dx%d %s: %d rounds of %d dabs against %d render threads, "
+            + "%d lines rendered in %.1f s, %d rounds failed", w, h, mode,
+        rounds, DABS, threads, lines, (System.nanoTime() - start) / 1e9,
+        failed));
+    System.exit(failed > 0 ? 1 : 0);
+  }
+
+  private static int diff(final Picture3D pic, final Picture img,
+      final Picture depth, final RenderMode mode) {
+    final int w = pic.getWidth();
+    final int h = pic.getHeight();
+    final Picture3D ref = new Picture3D(img, depth);
+    ref.setRenderMode(mode);
+    ref.render();
+    final int[] a = pic.getImage().getRGB(0, 0, w, h, null, 0, w);
+    final int[] b = ref.getImage().getRGB(0, 0, w, h, null, 0, w);
+    int diff = 0;
+    for(int i = 0; i < a.length; ++i) {
+      if(a[i] != b[i]) {
+        ++diff;
+      }
+    }
+    return diff;
+  }
+
+}
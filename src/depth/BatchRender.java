@@ -0,0 +1,223 @@
+package depth;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import depth.Picture3D.RenderMode;
+
+/**
+ * Renders the anaglyphs of all images of a folder without a display. Images
+ * are decoded and encoded on separate I/O threads while the rendering runs on
+ * the {@link RenderScheduler}, one image per render thread. The number of
+ * images in flight is bounded to keep the memory usage in check.
+ * <p>
+ * This class is the entry point of batch runs. Its main method switches AWT
+ * to headless mode before any AWT class is initialized. Started through
+ * <code>Depth -batch</code> that is too late, since loading the window class
+ * initializes AWT, so the run needs the native display libraries.
+ */
+public class BatchRender {
+
+  public static final String FORMAT = "png";
+
+  private final File out;
+
+  private final RenderMode mode;
+
+  private final double factor;
+
+  private final ExecutorService decoder;
+
+  private final ExecutorService encoder;
+
+  private final Semaphore inFlight;
+
+  private final AtomicInteger failed = new AtomicInteger();
+
+  private volatile RenderCache cache;
+
+  public BatchRender(final File out, final RenderMode mode,
+      final double factor, final int ioThreads) {
+    this.out = out;
+    this.mode = mode;
+    this.factor = factor;
+    decoder = Executors.newFixedThreadPool(ioThreads);
+    encoder = Executors.newFixedThreadPool(ioThreads);
+    inFlight = new Semaphore(RenderScheduler.getThreads() + 2 * ioThreads);
+  }
+
+  /**
+   * Setter.
+   * 
+   * @param cache The disk cache consulted before rendering or
+   *          <code>null</code>.
+   */
+  public void setCache(final RenderCache cache) {
+    this.cache = cache;
+  }
+
+  /**
+   * Renders all given images and waits until they are written.
+   * 
+   * @param files The images. The depth maps are found via
+   *          {@link Depth#getDepth(File)}.
+   * @return The number of images that could not be rendered. Images whose
+   *         output would overwrite the output of an earlier image, like
+   *         <code>a.jpg</code> after <code>a.png</code>, count as failed.
+   * @throws InterruptedException When interrupted while waiting.
+   */
+  public int render(final File[] files) throws InterruptedException {
+    final CountDownLatch done = new CountDownLatch(files.length);
+    final Map<File, File> outputs = new HashMap<File, File>();
+    for(final File f : files) {
+      final File first = outputs.get(getOutput(f));
+      if(first != null) {
+        failed.incrementAndGet();
+        System.err.println(f + ": same output as " + first);
+        done.countDown();
+        continue;
+      }
+      outputs.put(getOutput(f), f);
+      inFlight.acquire();
+      decoder.execute(new Runnable() {
+
+        @Override
+        public void run() {
+          try {
+            final RenderCache c = cache;
+            final String key = c != null ? RenderCache.key(f,
+                Depth.getDepth(f), mode, factor) : null;
+            if(c != null && c.copy(key, getOutput(f))) {
+              inFlight.release();
+              done.countDown();
+              return;
+            }
+            final BufferedImage img = ImageIO.read(f);
+            final BufferedImage depth = ImageIO.read(Depth.getDepth(f));
+            Metrics.get().decoded(f.length() + Depth.getDepth(f).length());
+            if(img == null || depth == null) {
+              throw new IOException("cannot decode " + f);
+            }
+            RenderScheduler.execute(new Runnable() {
+
+              @Override
+              public void run() {
+                try {
+                  final Picture3D pic = new Picture3D(img, depth);
+                  pic.setFactor(factor);
+                  pic.setRenderMode(mode);
+                  pic.render();
+                  encode(f, pic.getImage(), key, done);
+                } catch(final Throwable e) {
+                  fail(f, e, done);
+                }
+              }
+
+            });
+          } catch(final Throwable e) {
+            // also unchecked failures of corrupt or unsupported files
+            fail(f, e, done);
+          }
+        }
+
+      });
+    }
+    done.await();
+    decoder.shutdown();
+    encoder.shutdown();
+    return failed.get();
+  }
+
+  private void encode(final File f, final BufferedImage res,
+      final String key, final CountDownLatch done) {
+    encoder.execute(new Runnable() {
+
+      @Override
+      public void run() {
+        try {
+          final File o = getOutput(f);
+          ImageIO.write(res, FORMAT, o);
+          final RenderCache c = cache;
+          if(key != null && c != null) {
+            try {
+              c.put(key, o);
+            } catch(final IOException e) {
+              System.err.println(f + ": not cached: " + e.getMessage());
+            }
+          }
+          inFlight.release();
+          done.countDown();
+        } catch(final Throwable e) {
+          fail(f, e, done);
+        }
+      }
+
+    });
+  }
+
+  private void fail(final File f, final Throwable e,
+      final CountDownLatch done) {
+    System.err.println(f + ": "
+        + (e instanceof IOException ? e.getMessage() : e.toString()));
+    failed.incrementAndGet();
+    inFlight.release();
+    done.countDown();
+  }
+
+  /**
+   * Getter.
+   * 
+   * @param f The input image.
+   * @return The file the anaglyph of the image is written to.
+   */
+  public File getOutput(final File f) {
+    final String name = f.getName();
+    final int i = name.lastIndexOf('.');
+    return new File(out, name.substring(0, i) + "." + FORMAT);
+  }
+
+  public static final void main(final String[] args)
+      throws InterruptedException {
+    // before the first AWT class, which Depth.listImages would load
+    System.setProperty("java.awt.headless", "true");
+    if(args.length < 2) {
+      System.err.println("usage: <input folder> <output folder> "
+          + "[render mode] [factor] [io threads] [cache folder]");
+      System.exit(1);
+      return;
+    }
+    final File[] files = Depth.listImages(args[0]);
+    if(files == null) {
+      System.err.println("cannot list " + args[0]);
+      System.exit(1);
+      return;
+    }
+    // the first of images with the same output wins
+    Arrays.sort(files);
+    final File out = new File(args[1]);
+    out.mkdirs();
+    final RenderMode mode = args.length > 2 ? RenderMode.valueOf(args[2])
+        : RenderMode.SORTED_BLUR_LOG;
+    final double factor = args.length > 3 ? Double.parseDouble(args[3])
+        : 12.75;
+    final int io = args.length > 4 ? Integer.parseInt(args[4]) : 2;
+    final BatchRender br = new BatchRender(out, mode, factor, io);
+    if(args.length > 5) {
+      br.setCache(new RenderCache(new File(args[5]), RenderCache.SIZE));
+    }
+    final int failed = br.render(files);
+    System.exit(failed > 0 ? 1 : 0);
+  }
+
+}
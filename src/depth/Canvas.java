@@ -1,15 +1,20 @@
 package depth;
 
+import java.awt.AlphaComposite;
 import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
 import java.awt.Rectangle;
 import java.awt.RenderingHints;
+import java.awt.Transparency;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseWheelEvent;
 import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.VolatileImage;
 
 import javax.swing.Action;
 import javax.swing.ActionMap;
@@ -117,24 +122,135 @@ public class Canvas extends JComponent {
     super.setBackground(bg);
   }
 
+  /**
+   * The cached content layer. Only dirty areas of the layer are redrawn by
+   * the painter. Falls back to a compatible image when no accelerated image
+   * can be created.
+   */
+  private VolatileImage buffer;
+
+  private BufferedImage fallback;
+
+  private final Rectangle dirty = new Rectangle();
+
+  @Override
+  public void repaint(final long tm, final int x, final int y, final int w,
+      final int h) {
+    Metrics.get().repaint();
+    invalidateContent(x, y, w, h);
+    super.repaint(tm, x, y, w, h);
+  }
+
+  /**
+   * Repaints an area without redrawing the content layer. Use this when only
+   * what is drawn by {@link Painter#drawStatic(Graphics2D)} has changed.
+   * 
+   * @param x The x coordinate.
+   * @param y The y coordinate.
+   * @param w The width.
+   * @param h The height.
+   */
+  public void repaintOverlay(final int x, final int y, final int w,
+      final int h) {
+    Metrics.get().repaint();
+    super.repaint(0, x, y, w, h);
+  }
+
+  private void invalidateContent(final int x, final int y, final int w,
+      final int h) {
+    // the dirty area is null during the construction of the super class
+    if(dirty == null || w <= 0 || h <= 0) {
+      return;
+    }
+    synchronized(dirty) {
+      if(dirty.isEmpty()) {
+        dirty.setBounds(x, y, w, h);
+      } else {
+        dirty.add(new Rectangle(x, y, w, h));
+      }
+    }
+  }
+
+  private Rectangle takeDirty() {
+    synchronized(dirty) {
+      final Rectangle res = dirty.intersection(new Rectangle(0, 0, getWidth(),
+          getHeight()));
+      dirty.setBounds(0, 0, 0, 0);
+      return res;
+    }
+  }
+
   @Override
   public void paintComponent(final Graphics g) {
+    final int w = getWidth();
+    final int h = getHeight();
+    if(w <= 0 || h <= 0) {
+      return;
+    }
+    final long start = Metrics.get().start();
     final Graphics2D g2 = (Graphics2D) g.create();
+    final GraphicsConfiguration gc = getGraphicsConfiguration();
+    if(gc == null) {
+      if(fallback == null || fallback.getWidth() != w
+          || fallback.getHeight() != h) {
+        fallback = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        invalidateContent(0, 0, w, h);
+      }
+      drawContent(fallback.createGraphics(), takeDirty());
+      g2.drawImage(fallback, 0, 0, null);
+    } else {
+      do {
+        final int state = buffer != null ? buffer.validate(gc)
+            : VolatileImage.IMAGE_INCOMPATIBLE;
+        if(state == VolatileImage.IMAGE_INCOMPATIBLE || buffer.getWidth() != w
+            || buffer.getHeight() != h) {
+          if(buffer != null) {
+            buffer.flush();
+          }
+          buffer = gc.createCompatibleVolatileImage(w, h,
+              Transparency.TRANSLUCENT);
+          invalidateContent(0, 0, w, h);
+        } else if(state == VolatileImage.IMAGE_RESTORED) {
+          invalidateContent(0, 0, w, h);
+        }
+        drawContent(buffer.createGraphics(), takeDirty());
+        g2.drawImage(buffer, 0, 0, null);
+        if(buffer.contentsLost()) {
+          invalidateContent(0, 0, w, h);
+        }
+      } while(buffer.contentsLost());
+    }
     g2.clip(getVisibleRect());
     g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
         RenderingHints.VALUE_ANTIALIAS_ON);
-    final Color c = back;
-    if(c != null) {
-      g2.setColor(c);
-      g2.fill(getVisibleRect());
-    }
-    final Graphics2D gfx = (Graphics2D) g2.create();
-    gfx.translate(offX, offY);
-    gfx.scale(zoom, zoom);
-    painter.draw(gfx);
-    gfx.dispose();
     painter.drawStatic(g2);
     g2.dispose();
+    Metrics.get().paint(start);
+  }
+
+  /**
+   * Redraws an area of the content layer.
+   * 
+   * @param g The graphics context of the layer. It is disposed afterwards.
+   * @param area The area to redraw.
+   */
+  private void drawContent(final Graphics2D g, final Rectangle area) {
+    if(area.isEmpty()) {
+      g.dispose();
+      return;
+    }
+    g.clip(area);
+    g.setComposite(AlphaComposite.Src);
+    final Color c = back;
+    g.setColor(c != null ? c : new Color(0, true));
+    g.fill(area);
+    g.setComposite(AlphaComposite.SrcOver);
+    g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+        RenderingHints.VALUE_ANTIALIAS_ON);
+    g.translate(offX, offY);
+    g.scale(zoom, zoom);
+    painter.draw(g);
+    g.dispose();
   }
 
   /**
@@ -149,6 +265,59 @@ public class Canvas extends JComponent {
     repaint();
   }
 
+  /**
+   * Repaints the given rows of the image across the whole width of the
+   * component. All dirty areas are merged by the repaint manager until the
+   * next paint.
+   * 
+   * @param lower The first row in image coordinates.
+   * @param upper The last row in image coordinates inclusive.
+   */
+  public void repaintRows(final int lower, final int upper) {
+    final double top = offY + lower * zoom;
+    final double bottom = offY + (upper + 1) * zoom;
+    repaintArea(0, top, getWidth(), bottom - top);
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The visible area in image coordinates.
+   */
+  public Rectangle2D getVisibleImageRect() {
+    final Rectangle box = getVisibleRect();
+    return new Rectangle2D.Double((box.x - offX) / zoom, (box.y - offY) / zoom,
+        box.width / zoom, box.height / zoom);
+  }
+
+  /**
+   * Repaints the given area of the image.
+   * 
+   * @param rect The area in image coordinates.
+   */
+  public void repaintImage(final Rectangle2D rect) {
+    repaintArea(offX + rect.getMinX() * zoom, offY + rect.getMinY() * zoom,
+        rect.getWidth() * zoom, rect.getHeight() * zoom);
+  }
+
+  /**
+   * Repaints an area in component coordinates. The area is grown to whole
+   * pixels and by one pixel in each direction to cover anti-aliasing.
+   * 
+   * @param x The x coordinate.
+   * @param y The y coordinate.
+   * @param w The width.
+   * @param h The height.
+   */
+  private void repaintArea(final double x, final double y, final double w,
+      final double h) {
+    final int x0 = (int) Math.floor(x) - 1;
+    final int y0 = (int) Math.floor(y) - 1;
+    final int x1 = (int) Math.ceil(x + w) + 1;
+    final int y1 = (int) Math.ceil(y + h) + 1;
+    repaint(x0, y0, x1 - x0, y1 - y0);
+  }
+
   /**
    * Zooms to the on screen (in components coordinates) position.
    * 
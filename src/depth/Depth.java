@@ -3,27 +3,44 @@ package depth;
 import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseWheelEvent;
 import java.awt.geom.Ellipse2D;
 import java.awt.geom.Rectangle2D;
-import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
+import java.util.Arrays;
+
+import javax.management.JMException;
 
-import javax.imageio.ImageIO;
 import javax.swing.AbstractAction;
 import javax.swing.JFrame;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 
 import depth.Picture3D.RenderMode;
 
 public class Depth extends JFrame implements Painter {
 
-  public static final void main(final String[] args) throws IOException {
+  public static final void main(final String[] args) throws IOException,
+      InterruptedException {
+    if(args.length > 0 && args[0].equals("-batch")) {
+      // AWT is initialized with this class already, so only BatchRender as
+      // main class runs headless
+      BatchRender.main(Arrays.copyOfRange(args, 1, args.length));
+      return;
+    }
+    try {
+      Metrics.register();
+    } catch(final JMException e) {
+      System.err.println("no metrics: " + e.getMessage());
+    }
     final String folder = "examples";
     final Depth d = new Depth();
     d.setPicture(listImages(folder)[0]);
@@ -39,6 +56,21 @@ public class Depth extends JFrame implements Painter {
     return new File(file.getParent(), n + DEPTH + e);
   }
 
+  public static final String RAW = ".raw";
+
+  /**
+   * Getter.
+   * 
+   * @param file The image.
+   * @return The raw depth map file that is used instead of the depth image
+   *         when it exists.
+   */
+  public static final File getRawDepth(final File file) {
+    final String name = file.getName();
+    final String n = name.substring(0, name.lastIndexOf('.'));
+    return new File(file.getParent(), n + DEPTH + RAW);
+  }
+
   public static final File[] listImages(final String folder) {
     final File path = new File(folder);
     final FileFilter filter = new FileFilter() {
@@ -80,8 +112,54 @@ public class Depth extends JFrame implements Painter {
 
   private final Canvas comp;
 
+  private final DepthEditor editor = new DepthEditor() {
+
+    @Override
+    protected void changed(final Picture d, final Picture3D p,
+        final Rectangle chg) {
+      if(d != depth) {
+        return;
+      }
+      switch(mode) {
+        case 1:
+          if(p != null) {
+            comp.repaintImage(p.getAffected(chg));
+          }
+          break;
+        case 3:
+          comp.repaintImage(chg);
+          break;
+      }
+    }
+
+  };
+
   private File file;
 
+  /** The image opened last, which is shown once it is decoded. */
+  private File opening;
+
+  /** Records the edits of the current depth map. */
+  private EditJournal journal;
+
+  private Wiggle wiggle;
+
+  private PictureCache cache;
+
+  /** Refreshes the metrics display while it is shown. */
+  private final Timer hud = new Timer(500, new ActionListener() {
+
+    @Override
+    public void actionPerformed(final ActionEvent e) {
+      comp.repaintOverlay(0, 0, comp.getWidth(), comp.getHeight());
+    }
+
+  });
+
+  /** The disk cache of renders. Its folder is created on first use. */
+  private final RenderCache renders = new RenderCache(RenderCache.DIR,
+      RenderCache.SIZE);
+
   private class PicAction extends AbstractAction {
 
     private static final long serialVersionUID = -5195912606444403591L;
@@ -105,6 +183,12 @@ public class Depth extends JFrame implements Painter {
 
   private RenderMode renderMode;
 
+  /** The depth filters to cycle through. */
+  private static final DepthFilter[] FILTERS = { null, DepthFilter.median(2),
+      DepthFilter.gaussian(2), DepthFilter.bilateral(3, 12)};
+
+  private int filter;
+
   public Depth() {
     comp = new Canvas(this, 800, 600) {
 
@@ -134,6 +218,40 @@ public class Depth extends JFrame implements Painter {
             setRenderMode(next);
           }
 
+        });
+        addAction(KeyEvent.VK_F, new AbstractAction() {
+
+          private static final long serialVersionUID = 5531867226318712419L;
+
+          @Override
+          public void actionPerformed(final ActionEvent e) {
+            setDepthFilter((filter + 1) % FILTERS.length);
+          }
+
+        });
+        addAction(KeyEvent.VK_Z, new AbstractAction() {
+
+          private static final long serialVersionUID = -2447262151404963151L;
+
+          @Override
+          public void actionPerformed(final ActionEvent e) {
+            if(journal != null) {
+              editor.undo(journal, pic);
+            }
+          }
+
+        });
+        addAction(KeyEvent.VK_Y, new AbstractAction() {
+
+          private static final long serialVersionUID = 7840935226710950394L;
+
+          @Override
+          public void actionPerformed(final ActionEvent e) {
+            if(journal != null) {
+              editor.redo(journal, pic);
+            }
+          }
+
         });
         addAction(KeyEvent.VK_Q, new AbstractAction() {
 
@@ -141,6 +259,8 @@ public class Depth extends JFrame implements Painter {
 
           @Override
           public void actionPerformed(final ActionEvent e) {
+            stopWiggle();
+            hud.stop();
             Depth.this.dispose();
           }
 
@@ -167,19 +287,54 @@ public class Depth extends JFrame implements Painter {
           }
 
         });
-        addAction(KeyEvent.VK_LEFT, new AbstractAction() {
+        addAction(KeyEvent.VK_S, new AbstractAction() {
 
-          private static final long serialVersionUID = -6718270417186190777L;
+          private static final long serialVersionUID = 2271404846232337805L;
 
           @Override
           public void actionPerformed(final ActionEvent e) {
             try {
-              prevPicture();
+              storeDepth();
             } catch(final IOException io) {
               repaint();
             }
           }
 
+        });
+        addAction(KeyEvent.VK_W, new AbstractAction() {
+
+          private static final long serialVersionUID = 6126785935487071162L;
+
+          @Override
+          public void actionPerformed(final ActionEvent e) {
+            toggleWiggle();
+          }
+
+        });
+        addAction(KeyEvent.VK_H, new AbstractAction() {
+
+          private static final long serialVersionUID = -3290861471834552014L;
+
+          @Override
+          public void actionPerformed(final ActionEvent e) {
+            if(hud.isRunning()) {
+              hud.stop();
+            } else {
+              hud.start();
+            }
+            repaintOverlay(0, 0, getWidth(), getHeight());
+          }
+
+        });
+        addAction(KeyEvent.VK_LEFT, new AbstractAction() {
+
+          private static final long serialVersionUID = -6718270417186190777L;
+
+          @Override
+          public void actionPerformed(final ActionEvent e) {
+            prevPicture();
+          }
+
         });
         addAction(KeyEvent.VK_RIGHT, new AbstractAction() {
 
@@ -187,11 +342,7 @@ public class Depth extends JFrame implements Painter {
 
           @Override
           public void actionPerformed(final ActionEvent e) {
-            try {
-              nextPicture();
-            } catch(final IOException io) {
-              repaint();
-            }
+            nextPicture();
           }
 
         });
@@ -204,9 +355,7 @@ public class Depth extends JFrame implements Painter {
       @Override
       public void mouseMoved(final MouseEvent e) {
         if(drawMode) {
-          xPos = e.getX();
-          yPos = e.getY();
-          comp.repaint();
+          moveBrush(e.getX(), e.getY());
         }
       }
 
@@ -218,6 +367,13 @@ public class Depth extends JFrame implements Painter {
         }
       }
 
+      @Override
+      public void mouseReleased(final MouseEvent e) {
+        if(drawMode && journal != null) {
+          editor.endStroke(journal);
+        }
+      }
+
       @Override
       public void mouseDragged(final MouseEvent e) {
         if(drawMode) {
@@ -226,11 +382,9 @@ public class Depth extends JFrame implements Painter {
       }
 
       private void edit(final MouseEvent e) {
-        xPos = e.getX();
-        yPos = e.getY();
-        depth.editDepth(xPos, yPos, radius,
-            e.getButton() == MouseEvent.BUTTON1 ? 25.0 : -25.0, pic);
-        comp.repaint();
+        moveBrush(e.getX(), e.getY());
+        editor.edit(depth, pic, xPos, yPos, radius,
+            e.getButton() == MouseEvent.BUTTON1 ? 25.0 : -25.0);
       }
 
       @Override
@@ -244,7 +398,7 @@ public class Depth extends JFrame implements Painter {
           if(radius < 1) {
             radius = 1;
           }
-          comp.repaint();
+          comp.repaintOverlay(0, 0, comp.getWidth(), comp.getHeight());
         }
       }
 
@@ -261,9 +415,28 @@ public class Depth extends JFrame implements Painter {
     setDefaultCloseOperation(DISPOSE_ON_CLOSE);
   }
 
+  /**
+   * Moves the brush and repaints its old and new outline.
+   * 
+   * @param x The new x position.
+   * @param y The new y position.
+   */
+  protected void moveBrush(final int x, final int y) {
+    repaintBrush();
+    xPos = x;
+    yPos = y;
+    repaintBrush();
+  }
+
+  private void repaintBrush() {
+    comp.repaintOverlay(xPos - radius - 1, yPos - radius - 1, radius * 2 + 3,
+        radius * 2 + 3);
+  }
+
   public void setRenderMode(final RenderMode renderMode) {
+    stopWiggle();
     this.renderMode = renderMode;
-    setTitle(renderMode.toString());
+    updateTitle();
     if(pic != null) {
       pic.setRenderMode(renderMode, comp);
     }
@@ -274,11 +447,54 @@ public class Depth extends JFrame implements Painter {
     return renderMode;
   }
 
+  /**
+   * Selects the filter that smooths the depth map before rendering.
+   * 
+   * @param index The index of the filter.
+   */
+  public void setDepthFilter(final int index) {
+    stopWiggle();
+    filter = index;
+    updateTitle();
+    if(pic != null && filter(pic)) {
+      pic.update(comp);
+    }
+    repaint();
+  }
+
+  private void updateTitle() {
+    final DepthFilter f = FILTERS[filter];
+    setTitle(renderMode + (f != null ? " / " + f : ""));
+  }
+
+  /**
+   * Sets the selected depth filter without rendering.
+   * 
+   * @param p The picture.
+   * @return Whether the filter of the picture changed.
+   */
+  private boolean filter(final Picture3D p) {
+    final DepthFilter f = FILTERS[filter];
+    if(p.getDepthFilter() == f) {
+      return false;
+    }
+    try {
+      p.setDepthFilter(f);
+    } catch(final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    return true;
+  }
+
   @Override
   public void draw(final Graphics2D g) {
     switch(mode) {
       case 1:
-        if(pic != null) {
+        final Wiggle w = wiggle;
+        if(w != null) {
+          w.draw(g);
+        } else if(pic != null) {
           pic.draw(g);
         }
         break;
@@ -297,6 +513,21 @@ public class Depth extends JFrame implements Painter {
 
   @Override
   public void drawStatic(final Graphics2D g) {
+    int line = 20;
+    g.setColor(Color.WHITE);
+    final Wiggle w = wiggle;
+    if(w != null) {
+      final String stats = String.format("%.1f fps  %.1f ms  %d dropped",
+          w.getFps(), w.getRenderMs(), w.getDropped());
+      g.drawString(stats, 10, line);
+      line += 15;
+    }
+    if(hud.isRunning()) {
+      for(final String s : Metrics.get().summary()) {
+        g.drawString(s, 10, line);
+        line += 15;
+      }
+    }
     if(!drawMode) {
       return;
     }
@@ -305,46 +536,142 @@ public class Depth extends JFrame implements Painter {
         radius * 2));
   }
 
-  public void setPicture(final File file)
-      throws IOException {
+  /**
+   * Starts or stops the animated eye separation of the current picture.
+   */
+  public void toggleWiggle() {
+    if(wiggle != null) {
+      stopWiggle();
+    } else if(pic != null) {
+      wiggle = new Wiggle(pic, comp, Wiggle.FPS, Wiggle.PERIOD);
+      wiggle.start();
+    }
+    comp.repaint();
+  }
+
+  private void stopWiggle() {
+    if(wiggle != null) {
+      wiggle.stop();
+      wiggle = null;
+    }
+  }
+
+  /**
+   * Opens a picture and shows it once it is decoded. The current picture
+   * stays until then. A picture that has not been prefetched is rendered
+   * while it is shown.
+   * 
+   * @param file The image.
+   */
+  public void setPicture(final File file) {
     if(!isVisible()) {
       setVisible(true);
     }
-    this.file = file;
-    final BufferedImage i = ImageIO.read(file);
-    final BufferedImage d = ImageIO.read(getDepth(file));
-    img = new Picture(i);
-    depth = new Picture(d);
-    final Picture3D p = new Picture3D(img, depth);
+    opening = file.getAbsoluteFile();
+    final File folder = opening.getParentFile();
+    if(cache == null || !cache.getFolder().equals(folder)) {
+      cache = new PictureCache(folder, PictureCache.BUDGET);
+      cache.setRenderCache(renders);
+    }
+    cache.setRenderMode(renderMode);
+    cache.setDepthFilter(FILTERS[filter]);
+    cache.open(opening, new PictureCache.Receiver() {
+
+      @Override
+      public void opened(final File f, final PictureCache.Entry e) {
+        SwingUtilities.invokeLater(new Runnable() {
+
+          @Override
+          public void run() {
+            show(f, e);
+          }
+
+        });
+      }
+
+      @Override
+      public void failed(final File f, final IOException e) {
+        System.err.println(f + ": " + e.getMessage());
+      }
+
+    });
+  }
+
+  /**
+   * Shows an opened picture unless another one has been opened meanwhile.
+   * 
+   * @param f The image.
+   * @param e The picture.
+   */
+  private void show(final File f, final PictureCache.Entry e) {
+    if(!f.equals(opening)) {
+      return;
+    }
+    stopWiggle();
+    file = f;
+    img = e.img;
+    depth = e.depth;
+    setJournal();
     pic = null;
     comp.reset(new Rectangle2D.Double(0, 0, img.getWidth(), img.getHeight()));
-    pic = p;
+    pic = e.pic;
+    final boolean filtered = filter(pic);
+    if(!e.isRendered()) {
+      pic.setRenderMode(renderMode);
+      // a coarse preview first, then the visible tiles at full resolution
+      pic.updateProgressive(comp, comp.getVisibleImageRect());
+      // the tiles keep rendering when the picture is left
+      e.rendered = true;
+    } else if(pic.getRenderMode() != renderMode) {
+      pic.setRenderMode(renderMode, comp);
+    } else if(filtered) {
+      pic.update(comp);
+    }
+  }
+
+  /**
+   * Starts a new edit journal for the current depth map.
+   */
+  private void setJournal() {
+    if(journal != null) {
+      journal.close();
+    }
+    journal = new EditJournal(depth, EditJournal.BUDGET, true);
+    editor.setJournal(journal);
+  }
+
+  /**
+   * Stores the depth map as raw file next to the image. From then on the
+   * depth map is opened from the raw file and edits go straight to it.
+   * 
+   * @throws IOException I/O Exception.
+   */
+  public void storeDepth() throws IOException {
+    if(depth instanceof MappedPicture) {
+      ((MappedPicture) depth).force();
+      return;
+    }
+    stopWiggle();
+    depth = MappedPicture.create(getRawDepth(file), depth.getImage());
+    setJournal();
+    pic = new Picture3D(img, depth);
+    filter(pic);
     pic.setRenderMode(renderMode, comp);
+    cache.put(file, new PictureCache.Entry(img, depth, pic, true));
   }
 
-  public void nextPicture() throws IOException {
-    final File[] files = listImages(file.getParent());
-    File cur = files[0];
-    int i = files.length;
-    while(--i >= 0) {
-      if(files[i].equals(file)) {
-        break;
-      }
-      cur = files[i];
+  public void nextPicture() {
+    final File next = cache.neighbour(opening, 1);
+    if(next != null) {
+      setPicture(next);
     }
-    setPicture(cur);
   }
 
-  public void prevPicture() throws IOException {
-    final File[] files = listImages(file.getParent());
-    File cur = files[files.length - 1];
-    for(final File f : files) {
-      if(f.equals(file)) {
-        break;
-      }
-      cur = f;
+  public void prevPicture() {
+    final File prev = cache.neighbour(opening, -1);
+    if(prev != null) {
+      setPicture(prev);
     }
-    setPicture(cur);
   }
 
 }
@@ -0,0 +1,14 @@
+package depth;
+
+public interface DepthCurve {
+
+  /**
+   * Maps a raw depth value to the depth used for rendering. The result is
+   * multiplied by the disparity factor to get the distance of the eyes.
+   * 
+   * @param depth The raw depth value between 0 and 255.
+   * @return The depth used for rendering.
+   */
+  double map(int depth);
+
+}
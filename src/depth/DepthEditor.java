@@ -0,0 +1,344 @@
+package depth;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Applies brush dabs to depth maps on a background thread. All dabs that
+ * queue up while a batch is applied are applied together as one stroke: the
+ * depth values are edited dab by dab but every changed line is re-rendered
+ * only once per stroke.
+ */
+public class DepthEditor {
+
+  private static final class Dab {
+
+    /** Applies the dab. */
+    static final int EDIT = 0;
+
+    /** Undoes the last stroke of the journal. */
+    static final int UNDO = 1;
+
+    /** Redoes the last undone stroke of the journal. */
+    static final int REDO = 2;
+
+    /** Ends the current stroke of the journal. */
+    static final int END = 3;
+
+    final int action;
+
+    final EditJournal journal;
+
+    final Picture depth;
+
+    final Picture3D pic;
+
+    final int x;
+
+    final int y;
+
+    final int radius;
+
+    final double by;
+
+    /** When the dab was queued. */
+    final long queued = System.nanoTime();
+
+    Dab(final Picture depth, final Picture3D pic, final int x, final int y,
+        final int radius, final double by) {
+      action = EDIT;
+      journal = null;
+      this.depth = depth;
+      this.pic = pic;
+      this.x = x;
+      this.y = y;
+      this.radius = radius;
+      this.by = by;
+    }
+
+    Dab(final int action, final EditJournal journal, final Picture3D pic) {
+      this.action = action;
+      this.journal = journal;
+      depth = journal.getDepth();
+      this.pic = pic;
+      x = 0;
+      y = 0;
+      radius = 0;
+      by = 0;
+    }
+
+  }
+
+  /**
+   * Collects the changed columns of every line of a stroke.
+   */
+  private static final class Stroke implements DepthListener {
+
+    private final int[] from;
+
+    private final int[] to;
+
+    private int minY = Integer.MAX_VALUE;
+
+    private int maxY = Integer.MIN_VALUE;
+
+    Stroke(final int height) {
+      from = new int[height];
+      to = new int[height];
+      Arrays.fill(from, Integer.MAX_VALUE);
+      Arrays.fill(to, Integer.MIN_VALUE);
+    }
+
+    @Override
+    public void depthChanged(final int y, final int f, final int t) {
+      from[y] = Math.min(from[y], f);
+      to[y] = Math.max(to[y], t);
+      minY = Math.min(minY, y);
+      maxY = Math.max(maxY, y);
+    }
+
+    /**
+     * Passes the collected lines on at once and resets the stroke.
+     * 
+     * @param pic The picture or <code>null</code>.
+     */
+    void flush(final Picture3D pic) {
+      if(minY > maxY) {
+        return;
+      }
+      if(pic != null) {
+        pic.depthChanged(minY, maxY, from, to);
+      }
+      Arrays.fill(from, minY, maxY + 1, Integer.MAX_VALUE);
+      Arrays.fill(to, minY, maxY + 1, Integer.MIN_VALUE);
+      minY = Integer.MAX_VALUE;
+      maxY = Integer.MIN_VALUE;
+    }
+
+  }
+
+  private final BlockingQueue<Dab> queue = new LinkedBlockingQueue<Dab>();
+
+  private Picture strokeDepth;
+
+  private Stroke stroke;
+
+  private long dabs;
+
+  private long nanos;
+
+  private volatile EditJournal journal;
+
+  public DepthEditor() {
+    final Thread worker = new Thread("depth-editor") {
+
+      @Override
+      public void run() {
+        final List<Dab> batch = new ArrayList<Dab>();
+        try {
+          for(;;) {
+            batch.add(queue.take());
+            queue.drainTo(batch);
+            try {
+              apply(batch);
+            } catch(final RuntimeException e) {
+              // the next batch starts a fresh stroke
+              strokeDepth = null;
+              failed(e);
+            }
+            batch.clear();
+          }
+        } catch(final InterruptedException e) {
+          interrupt();
+        }
+      }
+
+    };
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+  /**
+   * Queues a dab. This method never blocks.
+   * 
+   * @param depth The depth map.
+   * @param pic The picture to update or <code>null</code>.
+   * @param x The x center.
+   * @param y The y center.
+   * @param radius The radius.
+   * @param by The amount to change the depth by.
+   */
+  public void edit(final Picture depth, final Picture3D pic, final int x,
+      final int y, final int radius, final double by) {
+    queue.add(new Dab(depth, pic, x, y, radius, by));
+  }
+
+  /**
+   * Sets the journal that records the edits of its depth map. Edits of other
+   * depth maps are not recorded.
+   * 
+   * @param journal The journal or <code>null</code>.
+   */
+  public void setJournal(final EditJournal journal) {
+    this.journal = journal;
+  }
+
+  /**
+   * Ends the current stroke of a journal after the queued dabs are applied.
+   * 
+   * @param journal The journal.
+   */
+  public void endStroke(final EditJournal journal) {
+    queue.add(new Dab(Dab.END, journal, null));
+  }
+
+  /**
+   * Undoes the last stroke of a journal after the queued dabs are applied.
+   * 
+   * @param journal The journal.
+   * @param pic The picture to update or <code>null</code>.
+   */
+  public void undo(final EditJournal journal, final Picture3D pic) {
+    queue.add(new Dab(Dab.UNDO, journal, pic));
+  }
+
+  /**
+   * Redoes the last undone stroke of a journal after the queued dabs are
+   * applied.
+   * 
+   * @param journal The journal.
+   * @param pic The picture to update or <code>null</code>.
+   */
+  public void redo(final EditJournal journal, final Picture3D pic) {
+    queue.add(new Dab(Dab.REDO, journal, pic));
+  }
+
+  private void apply(final List<Dab> batch) {
+    final long start = System.nanoTime();
+    Dab first = null;
+    Rectangle changed = null;
+    int edits = 0;
+    for(final Dab d : batch) {
+      if(first != null && (d.action != Dab.EDIT || d.depth != first.depth
+          || d.pic != first.pic)) {
+        finish(first, changed);
+        first = null;
+        changed = null;
+      }
+      if(d.action != Dab.EDIT) {
+        step(d);
+        continue;
+      }
+      ++edits;
+      if(d.depth != strokeDepth) {
+        strokeDepth = d.depth;
+        stroke = new Stroke(d.depth.getHeight());
+      }
+      first = d;
+      final EditJournal j = journal;
+      if(j != null && j.getDepth() == d.depth) {
+        j.touch(d.x - d.radius, d.y - d.radius, d.x + d.radius, d.y
+            + d.radius);
+      }
+      final Rectangle chg = d.depth.editDepth(d.x, d.y, d.radius, d.by, stroke);
+      if(chg == null) {
+        continue;
+      }
+      if(changed == null) {
+        changed = chg;
+      } else {
+        changed.add(chg);
+      }
+    }
+    if(first != null) {
+      finish(first, changed);
+    }
+    for(final Dab d : batch) {
+      if(d.action == Dab.EDIT) {
+        Metrics.get().edit(d.queued);
+      }
+    }
+    synchronized(this) {
+      dabs += edits;
+      nanos += System.nanoTime() - start;
+    }
+  }
+
+  private void finish(final Dab dab, final Rectangle changed) {
+    stroke.flush(dab.pic);
+    if(changed != null) {
+      changed(dab.depth, dab.pic, changed);
+    }
+  }
+
+  private void step(final Dab d) {
+    if(d.depth != strokeDepth) {
+      strokeDepth = d.depth;
+      stroke = new Stroke(d.depth.getHeight());
+    }
+    final Rectangle chg;
+    switch(d.action) {
+      case Dab.UNDO:
+        chg = d.journal.undo(stroke);
+        break;
+      case Dab.REDO:
+        chg = d.journal.redo(stroke);
+        break;
+      default:
+        d.journal.commit();
+        chg = null;
+        break;
+    }
+    stroke.flush(d.pic);
+    if(chg != null) {
+      changed(d.depth, d.pic, chg);
+    }
+  }
+
+  /**
+   * Is called on the editor thread after a stroke has been applied, undone,
+   * or redone and rendered.
+   * 
+   * @param depth The depth map.
+   * @param pic The updated picture or <code>null</code>.
+   * @param changed The changed area of the depth map.
+   */
+  protected void changed(final Picture depth, final Picture3D pic,
+      final Rectangle changed) {
+    // to be overwritten
+  }
+
+  /**
+   * Is called on the editor thread when applying a batch of dabs has failed.
+   * The editor keeps applying the following dabs.
+   * 
+   * @param e The failure.
+   */
+  protected void failed(final RuntimeException e) {
+    System.err.println("depth editor: " + e);
+    e.printStackTrace();
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The number of applied dabs.
+   */
+  public synchronized long getDabs() {
+    return dabs;
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The number of dabs applied per second of editor work.
+   */
+  public synchronized double getDabsPerSecond() {
+    return nanos > 0 ? dabs * 1e9 / nanos : 0;
+  }
+
+}
@@ -0,0 +1,337 @@
+package depth;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Smooths depth planes before they are rendered. Planes are row major bytes
+ * and pixels outside the plane repeat the nearest edge pixel. A filter can
+ * recompute any area of its output, which only depends on the input within
+ * the radius of the filter around the area, so edits of the depth map only
+ * need to refilter their surroundings.
+ */
+public abstract class DepthFilter {
+
+  /** The radius of the filter. */
+  protected final int radius;
+
+  private final String name;
+
+  /**
+   * Creates a filter.
+   *
+   * @param radius The radius.
+   * @param name The name.
+   */
+  protected DepthFilter(final int radius, final String name) {
+    if(radius < 0) {
+      throw new IllegalArgumentException("radius: " + radius);
+    }
+    this.radius = radius;
+    this.name = name;
+  }
+
+  /**
+   * Getter.
+   *
+   * @return The distance up to which input pixels affect an output pixel.
+   */
+  public int getRadius() {
+    return radius;
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+
+  /**
+   * Filters an area.
+   *
+   * @param src The input plane.
+   * @param dst The output plane. Only the area is written.
+   * @param width The width of the planes.
+   * @param height The height of the planes.
+   * @param area The area. It must lie within the planes.
+   */
+  public abstract void filter(byte[] src, byte[] dst, int width, int height,
+      Rectangle area);
+
+  /**
+   * Filters a whole plane in bands of rows on the {@link RenderScheduler}.
+   *
+   * @param src The input plane.
+   * @param dst The output plane. Must not be the input plane.
+   * @param width The width of the planes.
+   * @param height The height of the planes.
+   * @throws InterruptedException When interrupted while waiting.
+   */
+  public void apply(final byte[] src, final byte[] dst, final int width,
+      final int height) throws InterruptedException {
+    final int band = RenderScheduler.bandSize(height);
+    final CountDownLatch done = new CountDownLatch((height + band - 1) / band);
+    for(int y = 0; y < height; y += band) {
+      final Rectangle area = new Rectangle(0, y, width, Math.min(band, height
+          - y));
+      RenderScheduler.execute(new Runnable() {
+
+        @Override
+        public void run() {
+          try {
+            filter(src, dst, width, height, area);
+          } finally {
+            done.countDown();
+          }
+        }
+
+      });
+    }
+    done.await();
+  }
+
+  private static int clamp(final int v, final int max) {
+    return v < 0 ? 0 : (v > max ? max : v);
+  }
+
+  /**
+   * Creates a box blur. Every pixel costs the same regardless of the radius
+   * since the filter keeps running sums along rows and columns.
+   *
+   * @param radius The radius.
+   * @return The filter.
+   */
+  public static DepthFilter box(final int radius) {
+    return new BoxFilter(radius, 1, "box " + radius);
+  }
+
+  /**
+   * Creates an approximate Gaussian blur from three box blurs.
+   *
+   * @param sigma The standard deviation.
+   * @return The filter.
+   */
+  public static DepthFilter gaussian(final double sigma) {
+    // box width whose threefold application has the same variance
+    final int r = Math.max(0,
+        (int) Math.round((Math.sqrt(4 * sigma * sigma + 1) - 1) / 2));
+    return new BoxFilter(r, 3, "gaussian " + sigma);
+  }
+
+  /**
+   * Creates a median filter over a square window. The median is tracked in a
+   * histogram of the window that slides along each row.
+   *
+   * @param radius The radius.
+   * @return The filter.
+   */
+  public static DepthFilter median(final int radius) {
+    return new MedianFilter(radius);
+  }
+
+  /**
+   * Creates an edge preserving bilateral filter.
+   *
+   * @param radius The radius.
+   * @param sigmaRange The standard deviation of the depth difference weight.
+   * @return The filter.
+   */
+  public static DepthFilter bilateral(final int radius,
+      final double sigmaRange) {
+    return new BilateralFilter(radius, sigmaRange);
+  }
+
+  /**
+   * Repeated box blurs. Rows are blurred first, then columns.
+   */
+  private static final class BoxFilter extends DepthFilter {
+
+    private final int r;
+
+    private final int passes;
+
+    BoxFilter(final int r, final int passes, final String name) {
+      super(r * passes, name);
+      this.r = r;
+      this.passes = passes;
+    }
+
+    @Override
+    public void filter(final byte[] src, final byte[] dst, final int width,
+        final int height, final Rectangle area) {
+      final int y0 = Math.max(area.y - radius, 0);
+      final int y1 = Math.min(area.y + area.height - 1 + radius, height - 1);
+      final int rows = y1 - y0 + 1;
+      final int cols = area.width;
+      // the row blurred values of the area columns of all needed rows
+      final int[] tmp = new int[rows * cols];
+      final int x0 = Math.max(area.x - radius, 0);
+      final int x1 = Math.min(area.x + area.width - 1 + radius, width - 1);
+      int[] a = new int[width];
+      int[] b = new int[width];
+      for(int y = y0; y <= y1; ++y) {
+        final int off = y * width;
+        for(int x = x0; x <= x1; ++x) {
+          a[x] = src[off + x] & 0xff;
+        }
+        for(int p = 0; p < passes; ++p) {
+          // every later pass needs r columns less on each side
+          final int margin = (passes - 1 - p) * r;
+          blur(a, b, width, Math.max(area.x - margin, 0), Math.min(area.x
+              + area.width - 1 + margin, width - 1));
+          final int[] t = a;
+          a = b;
+          b = t;
+        }
+        System.arraycopy(a, area.x, tmp, (y - y0) * cols, cols);
+      }
+      a = new int[rows];
+      b = new int[rows];
+      for(int c = 0; c < cols; ++c) {
+        for(int i = 0; i < rows; ++i) {
+          a[i] = tmp[i * cols + c];
+        }
+        for(int p = 0; p < passes; ++p) {
+          blur(a, b, rows, 0, rows - 1);
+          final int[] t = a;
+          a = b;
+          b = t;
+        }
+        for(int y = area.y; y < area.y + area.height; ++y) {
+          dst[y * width + area.x + c] = (byte) a[y - y0];
+        }
+      }
+    }
+
+    /**
+     * Blurs a line with a running sum. Values outside the line repeat its
+     * first and last value.
+     */
+    private void blur(final int[] in, final int[] out, final int n,
+        final int lo, final int hi) {
+      final int size = 2 * r + 1;
+      int sum = 0;
+      for(int i = lo - r; i <= lo + r; ++i) {
+        sum += in[clamp(i, n - 1)];
+      }
+      for(int i = lo; i <= hi; ++i) {
+        out[i] = (sum + size / 2) / size;
+        sum += in[clamp(i + r + 1, n - 1)] - in[clamp(i - r, n - 1)];
+      }
+    }
+
+  }
+
+  /**
+   * The median of a square window.
+   */
+  private static final class MedianFilter extends DepthFilter {
+
+    MedianFilter(final int radius) {
+      super(radius, "median " + radius);
+    }
+
+    @Override
+    public void filter(final byte[] src, final byte[] dst, final int width,
+        final int height, final Rectangle area) {
+      final int[] hist = new int[256];
+      final int half = (2 * radius + 1) * (2 * radius + 1) / 2;
+      for(int y = area.y; y < area.y + area.height; ++y) {
+        Arrays.fill(hist, 0);
+        for(int dy = -radius; dy <= radius; ++dy) {
+          final int off = clamp(y + dy, height - 1) * width;
+          for(int dx = -radius; dx <= radius; ++dx) {
+            ++hist[src[off + clamp(area.x + dx, width - 1)] & 0xff];
+          }
+        }
+        // the median and the number of values below it
+        int med = 0;
+        int below = 0;
+        for(int x = area.x; x < area.x + area.width; ++x) {
+          if(x > area.x) {
+            final int out = clamp(x - radius - 1, width - 1);
+            final int in = clamp(x + radius, width - 1);
+            for(int dy = -radius; dy <= radius; ++dy) {
+              final int off = clamp(y + dy, height - 1) * width;
+              final int vo = src[off + out] & 0xff;
+              final int vi = src[off + in] & 0xff;
+              --hist[vo];
+              ++hist[vi];
+              if(vo < med) {
+                --below;
+              }
+              if(vi < med) {
+                ++below;
+              }
+            }
+          }
+          while(below > half) {
+            --med;
+            below -= hist[med];
+          }
+          while(below + hist[med] <= half) {
+            below += hist[med];
+            ++med;
+          }
+          dst[y * width + x] = (byte) med;
+        }
+      }
+    }
+
+  }
+
+  /**
+   * Averages a window weighted by distance and depth difference, so depth
+   * edges stay sharp while flat areas are smoothed.
+   */
+  private static final class BilateralFilter extends DepthFilter {
+
+    private final double[] spatial;
+
+    private final double[] range = new double[256];
+
+    BilateralFilter(final int radius, final double sigmaRange) {
+      super(radius, "bilateral " + radius);
+      final int size = 2 * radius + 1;
+      spatial = new double[size * size];
+      final double s = Math.max(radius / 2.0, 0.5);
+      for(int dy = -radius; dy <= radius; ++dy) {
+        for(int dx = -radius; dx <= radius; ++dx) {
+          spatial[(dy + radius) * size + dx + radius] = Math.exp(-(dx * dx + dy
+              * dy)
+              / (2 * s * s));
+        }
+      }
+      for(int d = 0; d < range.length; ++d) {
+        range[d] = Math.exp(-d * d / (2 * sigmaRange * sigmaRange));
+      }
+    }
+
+    @Override
+    public void filter(final byte[] src, final byte[] dst, final int width,
+        final int height, final Rectangle area) {
+      final int size = 2 * radius + 1;
+      for(int y = area.y; y < area.y + area.height; ++y) {
+        for(int x = area.x; x < area.x + area.width; ++x) {
+          final int center = src[y * width + x] & 0xff;
+          double sum = 0;
+          double weights = 0;
+          for(int dy = -radius; dy <= radius; ++dy) {
+            final int off = clamp(y + dy, height - 1) * width;
+            final int row = (dy + radius) * size + radius;
+            for(int dx = -radius; dx <= radius; ++dx) {
+              final int v = src[off + clamp(x + dx, width - 1)] & 0xff;
+              final double w = spatial[row + dx]
+                  * range[Math.abs(v - center)];
+              sum += w * v;
+              weights += w;
+            }
+          }
+          dst[y * width + x] = (byte) (int) (sum / weights + 0.5);
+        }
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,14 @@
+package depth;
+
+public interface DepthListener {
+
+  /**
+   * Is called when depth values of a line have changed.
+   * 
+   * @param y The line.
+   * @param from The first changed column.
+   * @param to The last changed column inclusive.
+   */
+  void depthChanged(int y, int from, int to);
+
+}
@@ -0,0 +1,471 @@
+package depth;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Records the strokes on a depth map so they can be undone and redone. A
+ * stroke is stored as the difference of the depth values before and after
+ * it. Every changed line holds the differences from its first to its last
+ * changed column as runs of equal values, so a stroke costs memory in
+ * proportion to its outline rather than to the depth map, and a brush that
+ * moves all values by the same amount costs a few bytes per line.
+ * <p>
+ * While a stroke is in progress only the columns it has touched are kept as
+ * they were before. They count against the memory budget like the recorded
+ * strokes. When the strokes exceed the memory budget the oldest ones are
+ * moved to a spill file or, without one, forgotten. Depth values are 8 bit.
+ */
+public final class EditJournal {
+
+  /** The default memory budget in bytes. */
+  public static final long BUDGET = 32L << 20;
+
+  /**
+   * A recorded stroke.
+   */
+  private static final class Stroke {
+
+    /** The encoded differences or <code>null</code> when spilled. */
+    byte[] data;
+
+    /** The position in the spill file. */
+    long pos;
+
+    final int len;
+
+    final Rectangle area;
+
+    Stroke(final byte[] data, final Rectangle area) {
+      this.data = data;
+      this.area = area;
+      len = data.length;
+    }
+
+  }
+
+  private final Picture depth;
+
+  private final long budget;
+
+  private final boolean spill;
+
+  private final List<Stroke> undos = new ArrayList<Stroke>();
+
+  /** The undone strokes, the next to redo last. */
+  private final List<Stroke> redos = new ArrayList<Stroke>();
+
+  /** The bytes of all strokes that are not spilled. */
+  private long memory;
+
+  private File file;
+
+  private RandomAccessFile spilled;
+
+  private long end;
+
+  /** The touched columns of lines before the current stroke started. */
+  private final byte[][] before;
+
+  /** The first column of the touched columns of every line. */
+  private final int[] beforeFrom;
+
+  /** The bytes of the touched columns. */
+  private long pending;
+
+  private final int[] touched;
+
+  private int touchedCount;
+
+  /**
+   * Creates a journal.
+   *
+   * @param depth The depth map.
+   * @param budget The memory budget in bytes.
+   * @param spill Whether strokes beyond the budget are moved to a temporary
+   *          file instead of being forgotten.
+   */
+  public EditJournal(final Picture depth, final long budget,
+      final boolean spill) {
+    this.depth = depth;
+    this.budget = budget;
+    this.spill = spill;
+    before = new byte[depth.getHeight()][];
+    beforeFrom = new int[depth.getHeight()];
+    touched = new int[depth.getHeight()];
+  }
+
+  /**
+   * Getter.
+   *
+   * @return The depth map.
+   */
+  public Picture getDepth() {
+    return depth;
+  }
+
+  /**
+   * Remembers the depth values of an area before the current stroke edits
+   * it. Columns already touched by the stroke are left alone. The touched
+   * columns of a line always form one span, and the columns the span grows
+   * by have not been touched, so they still hold the values from before the
+   * stroke.
+   *
+   * @param x0 The first column.
+   * @param y0 The first line.
+   * @param x1 The last column inclusive.
+   * @param y1 The last line inclusive.
+   */
+  public synchronized void touch(final int x0, final int y0, final int x1,
+      final int y1) {
+    final Raster r = depth.getRaster();
+    final int from = Math.max(x0, 0);
+    final int to = Math.min(x1, r.getWidth() - 1);
+    final int last = Math.min(y1, before.length - 1);
+    if(from > to) {
+      return;
+    }
+    for(int y = Math.max(y0, 0); y <= last; ++y) {
+      final byte[] old = before[y];
+      if(old == null) {
+        before[y] = read(r, from, y, to);
+        beforeFrom[y] = from;
+        touched[touchedCount++] = y;
+        pending += to - from + 1;
+        continue;
+      }
+      final int lo = beforeFrom[y];
+      final int hi = lo + old.length - 1;
+      if(from >= lo && to <= hi) {
+        continue;
+      }
+      final int nlo = Math.min(lo, from);
+      final int nhi = Math.max(hi, to);
+      final byte[] res = new byte[nhi - nlo + 1];
+      if(nlo < lo) {
+        System.arraycopy(read(r, nlo, y, lo - 1), 0, res, 0, lo - nlo);
+      }
+      System.arraycopy(old, 0, res, lo - nlo, old.length);
+      if(nhi > hi) {
+        System.arraycopy(read(r, hi + 1, y, nhi), 0, res, hi + 1 - nlo, nhi
+            - hi);
+      }
+      before[y] = res;
+      beforeFrom[y] = nlo;
+      pending += res.length - old.length;
+    }
+    trim();
+  }
+
+  private static byte[] read(final Raster r, final int from, final int y,
+      final int to) {
+    final int[] line = r.getSamples(from, y, to - from + 1, 1, 0,
+        (int[]) null);
+    final byte[] res = new byte[line.length];
+    for(int i = 0; i < line.length; ++i) {
+      res[i] = (byte) line[i];
+    }
+    return res;
+  }
+
+  /**
+   * Ends the current stroke and records it unless nothing has changed.
+   * Recording a stroke discards the undone strokes.
+   */
+  public synchronized void commit() {
+    if(touchedCount == 0) {
+      return;
+    }
+    Arrays.sort(touched, 0, touchedCount);
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final int[] cur = new int[depth.getWidth()];
+    Rectangle area = null;
+    for(int i = 0; i < touchedCount; ++i) {
+      final int y = touched[i];
+      final byte[] old = before[y];
+      final int lo = beforeFrom[y];
+      before[y] = null;
+      depth.getRaster().getSamples(lo, y, old.length, 1, 0, cur);
+      int from = 0;
+      while(from < old.length && cur[from] == (old[from] & 0xff)) {
+        ++from;
+      }
+      if(from == old.length) {
+        continue;
+      }
+      int to = old.length - 1;
+      while(cur[to] == (old[to] & 0xff)) {
+        --to;
+      }
+      writeInt(out, y);
+      writeInt(out, lo + from);
+      int x = from;
+      while(x <= to) {
+        final int diff = cur[x] - old[x] & 0xff;
+        int n = 1;
+        while(x + n <= to && (cur[x + n] - old[x + n] & 0xff) == diff) {
+          ++n;
+        }
+        writeInt(out, n);
+        out.write(diff);
+        x += n;
+      }
+      writeInt(out, 0);
+      final Rectangle line = new Rectangle(lo + from, y, to - from + 1, 1);
+      if(area == null) {
+        area = line;
+      } else {
+        area.add(line);
+      }
+    }
+    touchedCount = 0;
+    pending = 0;
+    if(area == null) {
+      return;
+    }
+    for(final Stroke s : redos) {
+      if(s.data != null) {
+        memory -= s.len;
+      }
+    }
+    redos.clear();
+    boolean onDisk = false;
+    for(final Stroke u : undos) {
+      onDisk |= u.data == null;
+    }
+    if(!onDisk) {
+      // the spill file is reused from the start
+      end = 0;
+    }
+    final Stroke s = new Stroke(out.toByteArray(), area);
+    undos.add(s);
+    memory += s.len;
+    trim();
+  }
+
+  /**
+   * Undoes the last stroke. A stroke in progress is recorded first.
+   *
+   * @param listener Is notified about every changed line or may be
+   *          <code>null</code>.
+   * @return The changed area or <code>null</code> if there is nothing to
+   *         undo.
+   */
+  public synchronized Rectangle undo(final DepthListener listener) {
+    commit();
+    return step(undos, redos, -1, listener);
+  }
+
+  /**
+   * Redoes the last undone stroke.
+   *
+   * @param listener Is notified about every changed line or may be
+   *          <code>null</code>.
+   * @return The changed area or <code>null</code> if there is nothing to
+   *         redo.
+   */
+  public synchronized Rectangle redo(final DepthListener listener) {
+    return step(redos, undos, 1, listener);
+  }
+
+  /**
+   * Getter.
+   *
+   * @return The number of strokes that can be undone.
+   */
+  public synchronized int getUndos() {
+    return undos.size();
+  }
+
+  /**
+   * Getter.
+   *
+   * @return The number of strokes that can be redone.
+   */
+  public synchronized int getRedos() {
+    return redos.size();
+  }
+
+  /**
+   * Getter.
+   *
+   * @return The bytes of the strokes and touched columns held in memory.
+   */
+  public synchronized long getMemory() {
+    return memory + pending;
+  }
+
+  /**
+   * Forgets all strokes and deletes the spill file.
+   */
+  public synchronized void close() {
+    undos.clear();
+    redos.clear();
+    memory = 0;
+    closeFile();
+  }
+
+  private Rectangle step(final List<Stroke> from, final List<Stroke> to,
+      final int sign, final DepthListener listener) {
+    if(from.isEmpty()) {
+      return null;
+    }
+    final Stroke s = from.remove(from.size() - 1);
+    final byte[] data;
+    try {
+      data = load(s);
+    } catch(final IOException e) {
+      // the remaining strokes of the list depend on this one
+      forget(from, from.size());
+      return null;
+    }
+    apply(data, sign, listener);
+    to.add(s);
+    return new Rectangle(s.area);
+  }
+
+  /**
+   * Adds or subtracts the differences of a stroke.
+   */
+  private void apply(final byte[] data, final int sign,
+      final DepthListener listener) {
+    final int[] diff = new int[depth.getWidth()];
+    final int[] pos = { 0};
+    while(pos[0] < data.length) {
+      final int y = readInt(data, pos);
+      final int from = readInt(data, pos);
+      int len = 0;
+      int n;
+      while((n = readInt(data, pos)) != 0) {
+        Arrays.fill(diff, len, len + n, data[pos[0]++] & 0xff);
+        len += n;
+      }
+      final int[] line = depth.getRaster().getSamples(from, y, len, 1, 0,
+          (int[]) null);
+      for(int i = 0; i < len; ++i) {
+        line[i] = line[i] + sign * diff[i] & 0xff;
+      }
+      depth.setDepths(from, y, line, len);
+      if(listener != null) {
+        listener.depthChanged(y, from, from + len - 1);
+      }
+    }
+  }
+
+  private byte[] load(final Stroke s) throws IOException {
+    if(s.data != null) {
+      return s.data;
+    }
+    if(spilled == null) {
+      throw new IOException("no spill file");
+    }
+    final byte[] res = new byte[s.len];
+    spilled.seek(s.pos);
+    spilled.readFully(res);
+    return res;
+  }
+
+  /**
+   * Spills or forgets the oldest strokes until the strokes in memory and the
+   * touched columns of the current stroke fit the budget.
+   */
+  private void trim() {
+    while(memory + pending > budget) {
+      final List<Stroke> list = oldest(undos) >= 0 ? undos : redos;
+      final int i = oldest(list);
+      if(i < 0) {
+        return;
+      }
+      final Stroke s = list.get(i);
+      if(spill && write(s)) {
+        continue;
+      }
+      // older strokes cannot be applied without this one
+      forget(list, i + 1);
+    }
+  }
+
+  private static int oldest(final List<Stroke> list) {
+    for(int i = 0; i < list.size(); ++i) {
+      if(list.get(i).data != null) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private void forget(final List<Stroke> list, final int count) {
+    for(int i = 0; i < count; ++i) {
+      final Stroke s = list.remove(0);
+      if(s.data != null) {
+        memory -= s.len;
+      }
+    }
+    if(undos.isEmpty() && redos.isEmpty()) {
+      closeFile();
+    }
+  }
+
+  private boolean write(final Stroke s) {
+    try {
+      if(spilled == null) {
+        file = File.createTempFile("depth", ".journal");
+        file.deleteOnExit();
+        spilled = new RandomAccessFile(file, "rw");
+        end = 0;
+      }
+      spilled.seek(end);
+      spilled.write(s.data);
+    } catch(final IOException e) {
+      return false;
+    }
+    s.pos = end;
+    end += s.len;
+    s.data = null;
+    memory -= s.len;
+    return true;
+  }
+
+  private void closeFile() {
+    if(spilled == null) {
+      return;
+    }
+    try {
+      spilled.close();
+    } catch(final IOException e) {
+      // deleted anyway
+    }
+    file.delete();
+    spilled = null;
+    file = null;
+  }
+
+  private static void writeInt(final ByteArrayOutputStream out, final int v) {
+    int rest = v;
+    while(rest >= 0x80) {
+      out.write(rest & 0x7f | 0x80);
+      rest >>>= 7;
+    }
+    out.write(rest);
+  }
+
+  private static int readInt(final byte[] data, final int[] pos) {
+    int res = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = data[pos[0]++];
+      res |= (b & 0x7f) << shift;
+      shift += 7;
+    } while(b < 0);
+    return res;
+  }
+
+}
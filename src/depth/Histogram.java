@@ -0,0 +1,107 @@
+package depth;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free histogram of durations in nanoseconds. Every power of two is
+ * split into four buckets, so quantiles are accurate to about 12 percent.
+ * Recording is a few atomic increments and never allocates.
+ */
+final class Histogram {
+
+  private static final int BUCKETS = 64 * 4;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+  private final AtomicLong count = new AtomicLong();
+
+  private final AtomicLong sum = new AtomicLong();
+
+  private static int bucket(final long v) {
+    if(v < 4) {
+      return (int) Math.max(v, 0);
+    }
+    final int lg = 63 - Long.numberOfLeadingZeros(v);
+    return lg * 4 + (int) ((v >>> (lg - 2)) & 3);
+  }
+
+  private static long lower(final int bucket) {
+    if(bucket < 8) {
+      // buckets 4 to 7 stay empty
+      return Math.min(bucket, 4);
+    }
+    return (4L + (bucket & 3)) << (bucket / 4 - 2);
+  }
+
+  /**
+   * Records a duration.
+   * 
+   * @param nanos The duration in nanoseconds.
+   */
+  public void add(final long nanos) {
+    counts.incrementAndGet(bucket(nanos));
+    count.incrementAndGet();
+    sum.addAndGet(nanos);
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The number of recorded durations.
+   */
+  public long getCount() {
+    return count.get();
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The mean duration in nanoseconds.
+   */
+  public double getMean() {
+    final long c = count.get();
+    return c > 0 ? (double) sum.get() / c : 0;
+  }
+
+  /**
+   * Estimates a quantile.
+   * 
+   * @param q The quantile between 0 and 1.
+   * @return The estimated duration in nanoseconds.
+   */
+  public double quantile(final double q) {
+    final long[] c = new long[BUCKETS];
+    long total = 0;
+    for(int i = 0; i < BUCKETS; ++i) {
+      c[i] = counts.get(i);
+      total += c[i];
+    }
+    if(total == 0) {
+      return 0;
+    }
+    final long rank = (long) Math.ceil(q * total);
+    long seen = 0;
+    for(int i = 0; i < BUCKETS; ++i) {
+      seen += c[i];
+      if(seen >= rank && c[i] > 0) {
+        final long lo = lower(i);
+        final long hi = i + 1 < BUCKETS ? lower(i + 1) : lo;
+        return (lo + Math.max(hi, lo)) / 2.0;
+      }
+    }
+    return lower(BUCKETS - 1);
+  }
+
+  /**
+   * Forgets all recorded durations.
+   */
+  public void reset() {
+    for(int i = 0; i < BUCKETS; ++i) {
+      counts.set(i, 0);
+    }
+    count.set(0);
+    sum.set(0);
+  }
+
+}
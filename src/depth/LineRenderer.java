@@ -0,0 +1,518 @@
+package depth;
+
+import java.util.Arrays;
+
+import depth.Picture3D.RenderMode;
+
+/**
+ * Renders anaglyph lines directly on packed rgb planes. The source, depth, and
+ * destination planes are row major with the line starting at a given offset.
+ * An instance holds the scratch buffers for one line and must not be shared
+ * between threads.
+ */
+final class LineRenderer {
+
+  /** The largest blur that still fits the 16 bit lanes of the run kernel. */
+  private static final int MAX_EXACT_BLUR = 64;
+
+  private final int width;
+
+  private final double[] redDepth;
+
+  private final double[] cyanDepth;
+
+  private final int[] order;
+
+  private final int[] line;
+
+  private final int[] fillLine;
+
+  private final byte[] depthLine;
+
+  private final int[] buckets = new int[Transfer.DEPTHS];
+
+  private boolean runs = true;
+
+  public LineRenderer(final int width) {
+    this.width = width;
+    redDepth = new double[width];
+    cyanDepth = new double[width];
+    order = new int[width];
+    line = new int[width];
+    fillLine = new int[width];
+    depthLine = new byte[width];
+  }
+
+  /**
+   * Renders one line.
+   *
+   * @param src The packed source pixels.
+   * @param depth The raw depth values.
+   * @param dst The packed output pixels.
+   * @param off The offset of the line in all three planes.
+   * @param tr The transfer tables.
+   */
+  public void render(final int[] src, final byte[] depth, final int[] dst,
+      final int off, final Transfer tr) {
+    render(src, depth, dst, off, 0, width - 1, tr);
+  }
+
+  /**
+   * Renders a window of one line. Only the output columns of the window are
+   * touched. Since an output column only depends on input columns at most the
+   * maximal shift away and a subset of the drawing order keeps its relative
+   * order the window is exactly the same as in a full render.
+   *
+   * @param src The packed source pixels.
+   * @param depth The raw depth values.
+   * @param dst The packed output pixels.
+   * @param off The offset of the line in all three planes.
+   * @param from The first output column.
+   * @param to The last output column inclusive.
+   * @param tr The transfer tables.
+   */
+  public void render(final int[] src, final byte[] depth, final int[] dst,
+      final int off, final int from, final int to, final Transfer tr) {
+    render(src, off, depth, off, dst, off, from, to, tr);
+  }
+
+  /**
+   * Renders a window of one line whose depth values and output are separate
+   * lines.
+   *
+   * @param src The packed source pixels.
+   * @param off The offset of the line in the source.
+   * @param depth The raw depth values.
+   * @param depthOff The offset of the line in the depth values.
+   * @param dst The packed output pixels.
+   * @param dstOff The offset of the line in the output.
+   * @param from The first output column.
+   * @param to The last output column inclusive.
+   * @param tr The transfer tables.
+   */
+  public void render(final int[] src, final int off, final byte[] depth,
+      final int depthOff, final int[] dst, final int dstOff, final int from,
+      final int to, final Transfer tr) {
+    final int lo = Math.max(from, 0);
+    final int hi = Math.min(to, width - 1);
+    if(lo > hi) {
+      return;
+    }
+    if(!tr.mode.fill) {
+      draw(src, off, depth, depthOff, dst, dstOff, lo, hi, tr);
+      return;
+    }
+    // draws the holes reaching into the window up to their neighbours
+    final int min = Math.max(lo - tr.fill, 0);
+    final int max = Math.min(hi + tr.fill, width - 1);
+    if(min == lo && max == hi) {
+      // nothing is drawn outside the window, so no scratch line is needed
+      draw(src, off, depth, depthOff, dst, dstOff, lo, hi, tr);
+      fillHoles(dst, dstOff, lo, hi, min, max);
+      return;
+    }
+    draw(src, off, depth, depthOff, fillLine, 0, min, max, tr);
+    fillHoles(fillLine, 0, lo, hi, min, max);
+    System.arraycopy(fillLine, lo, dst, dstOff + lo, hi - lo + 1);
+  }
+
+  /**
+   * Draws a window of one line. Columns that nothing is drawn to stay black.
+   * In modes that fill holes their depth memory stays infinite.
+   */
+  private void draw(final int[] src, final int off, final byte[] depth,
+      final int depthOff, final int[] dst, final int dstOff, final int lo,
+      final int hi, final Transfer tr) {
+    final RenderMode mode = tr.mode;
+    final double none = mode.fill ? Double.POSITIVE_INFINITY : 0.0;
+    Arrays.fill(dst, dstOff + lo, dstOff + hi + 1, 0);
+    Arrays.fill(redDepth, lo, hi + 1, none);
+    Arrays.fill(cyanDepth, lo, hi + 1, none);
+    final int shift = tr.maxShift - tr.fill;
+    final int start = Math.max(lo - shift, 0);
+    final int end = Math.min(hi + shift, width - 1);
+    final int count = order(depth, depthOff, start, end, tr, mode.sort);
+    final int b = mode.blur;
+    if(!runs || !isExact(b)) {
+      for(int i = 0; i < count; ++i) {
+        final int x = order[i];
+        drawPixel(src[off + x], depth[depthOff + x] & 0xff, x, dst, dstOff, lo,
+            hi, tr);
+      }
+      return;
+    }
+    final int scale = Math.max(b, 1);
+    final int bits = Integer.numberOfTrailingZeros(scale);
+    int i = 0;
+    while(i < count) {
+      final int x = order[i];
+      final byte d = depth[depthOff + x];
+      int n = 1;
+      while(i + n < count && order[i + n] == x + n
+          && depth[depthOff + x + n] == d) {
+        ++n;
+      }
+      final double md = tr.depth[d & 0xff];
+      final int dist = tr.dist[d & 0xff];
+      for(int t = b; t >= -b; --t) {
+        final int wOld = Math.abs(t);
+        final int wNew = scale - wOld;
+        redRun(src, off, dst, dstOff, x, n, x - dist + t, lo, hi, wOld, wNew,
+            bits, md, mode.depthMem);
+        cyanRun(src, off, dst, dstOff, x, n, x + dist + t, lo, hi, wOld, wNew,
+            bits, md, mode.depthMem);
+      }
+      i += n;
+    }
+  }
+
+  /**
+   * Fills the holes of both channels in one sweep. A hole is a run of columns
+   * that nothing was drawn to, which happens where a near object moves away
+   * from the background behind it. Such columns show the background, so each
+   * hole gets the channel of the farther of the columns next to it. Since the
+   * columns are drawn in drawing order rather than from left to right a hole
+   * is only known after drawing, so the sweep follows the draw pass.
+   *
+   * @param line The drawn line.
+   * @param lineOff The offset of the line.
+   * @param lo The first column to fill.
+   * @param hi The last column to fill inclusive.
+   * @param min The first drawn column.
+   * @param max The last drawn column inclusive.
+   */
+  private void fillHoles(final int[] line, final int lineOff, final int lo,
+      final int hi, final int min, final int max) {
+    // the last drawn column of each channel
+    int red = min - 1;
+    int cyan = min - 1;
+    for(int c = min; c <= max + 1; ++c) {
+      if(c > max || redDepth[c] != Double.POSITIVE_INFINITY) {
+        if(c - red > 1) {
+          fillHole(line, lineOff, redDepth, 0xff0000, red, c, lo, hi, min,
+              max);
+        }
+        red = c;
+      }
+      if(c > max || cyanDepth[c] != Double.POSITIVE_INFINITY) {
+        if(c - cyan > 1) {
+          fillHole(line, lineOff, cyanDepth, 0x00ffff, cyan, c, lo, hi,
+              min, max);
+        }
+        cyan = c;
+      }
+    }
+  }
+
+  /**
+   * Fills a hole of a channel from the farther of the drawn columns next to
+   * it.
+   *
+   * @param line The drawn line.
+   * @param lineOff The offset of the line.
+   * @param mem The depth memory of the channel.
+   * @param mask The mask of the channel in a packed pixel.
+   * @param left The drawn column left of the hole or <code>min - 1</code>.
+   * @param right The drawn column right of the hole or <code>max + 1</code>.
+   * @param lo The first column to fill.
+   * @param hi The last column to fill inclusive.
+   * @param min The first drawn column.
+   * @param max The last drawn column inclusive.
+   */
+  private static void fillHole(final int[] line, final int lineOff,
+      final double[] mem, final int mask, final int left, final int right,
+      final int lo, final int hi, final int min, final int max) {
+    final int a = Math.max(left + 1, lo);
+    final int b = Math.min(right - 1, hi);
+    if(a > b) {
+      return;
+    }
+    // the memory holds negated depths, so farther is larger
+    final int from;
+    if(left < min) {
+      from = right <= max ? right : -1;
+    } else if(right > max || mem[left] >= mem[right]) {
+      from = left;
+    } else {
+      from = right;
+    }
+    if(from < 0) {
+      return;
+    }
+    final int v = line[lineOff + from] & mask;
+    for(int k = lineOff + a; k <= lineOff + b; ++k) {
+      line[k] = (line[k] & ~mask) | v;
+    }
+  }
+
+  /**
+   * Renders full color views of one line. The views are evenly spaced
+   * between the left and the right eye. All views share one far to near
+   * drawing order so nearer pixels cover farther ones, and uncovered columns
+   * keep the pixel of the flat image.
+   *
+   * @param src The packed source pixels.
+   * @param off The offset of the line in the source.
+   * @param depth The raw depth values.
+   * @param depthOff The offset of the line in the depth values.
+   * @param views The output lines, one per view.
+   * @param tr The transfer tables.
+   */
+  public void renderViews(final int[] src, final int off, final byte[] depth,
+      final int depthOff, final int[][] views, final Transfer tr) {
+    final int n = views.length;
+    for(final int[] v : views) {
+      System.arraycopy(src, off, v, 0, width);
+    }
+    final int count = order(depth, depthOff, 0, width - 1, tr, true);
+    final int div = Math.max(n - 1, 1);
+    for(int i = 0; i < count; ++i) {
+      final int x = order[i];
+      final int rgb = src[off + x];
+      final int dist = tr.dist[depth[depthOff + x] & 0xff];
+      for(int v = 0; v < n; ++v) {
+        // from -dist for the left to dist for the right eye
+        final int c = x + (2 * v - n + 1) * dist / div;
+        if(c >= 0 && c < width) {
+          views[v][c] = rgb;
+        }
+      }
+    }
+  }
+
+  /**
+   * Getter.
+   *
+   * @return A scratch output line of this renderer.
+   */
+  public int[] getLine() {
+    return line;
+  }
+
+  /**
+   * Getter.
+   *
+   * @return A scratch depth line of this renderer.
+   */
+  public byte[] getDepthLine() {
+    return depthLine;
+  }
+
+  /**
+   * Whether the blur weights allow exact integer blending. With a power of
+   * two blur the weights <code>1 - dx / blur</code> are exact binary
+   * fractions, so the floating point blend is exactly
+   * <code>(dx * old + (blur - dx) * new) / blur</code> rounded down.
+   *
+   * @param blur The blur.
+   * @return Whether the run kernel can be used.
+   */
+  private static boolean isExact(final int blur) {
+    return blur == 0 || blur <= MAX_EXACT_BLUR && (blur & (blur - 1)) == 0;
+  }
+
+  /**
+   * Setter.
+   *
+   * @param runs Whether to use the integer run kernel when the blur allows
+   *          it. Otherwise lines are drawn pixel by pixel in floating point.
+   */
+  public void setRuns(final boolean runs) {
+    this.runs = runs;
+  }
+
+  /**
+   * Computes the drawing order of a range of the line. Sorted modes draw far
+   * to near by a stable counting sort over the drawing ranks of the raw depth
+   * values. This is the same order as a stable sort by mapped depth.
+   *
+   * @param depth The raw depth values.
+   * @param off The offset of the line.
+   * @param start The first column.
+   * @param end The last column inclusive.
+   * @param tr The transfer tables.
+   * @param sort Whether to sort or keep the columns in order.
+   * @return The number of columns in the order.
+   */
+  private int order(final byte[] depth, final int off, final int start,
+      final int end, final Transfer tr, final boolean sort) {
+    final int count = end - start + 1;
+    if(!sort) {
+      for(int i = 0; i < count; ++i) {
+        order[i] = start + i;
+      }
+      return count;
+    }
+    final int[] rank = tr.rank;
+    Arrays.fill(buckets, 0);
+    for(int x = start; x <= end; ++x) {
+      ++buckets[rank[depth[off + x] & 0xff]];
+    }
+    int pos = 0;
+    for(int i = 0; i < buckets.length; ++i) {
+      final int c = buckets[i];
+      buckets[i] = pos;
+      pos += c;
+    }
+    for(int x = start; x <= end; ++x) {
+      order[buckets[rank[depth[off + x] & 0xff]]++] = x;
+    }
+    return count;
+  }
+
+  private void drawPixel(final int rgb, final int d, final int x,
+      final int[] dst, final int off, final int lo, final int hi,
+      final Transfer tr) {
+    final double depth = tr.depth[d];
+    final int dist = tr.dist[d];
+    final int b = tr.mode.blur;
+    final boolean mem = tr.mode.depthMem;
+    for(int dx = 0; dx <= b; ++dx) {
+      final double f = tr.weights[dx];
+      drawRed(rgb, x - dist - dx, dst, off, lo, hi, f, depth, mem);
+      drawCyan(rgb, x + dist - dx, dst, off, lo, hi, f, depth, mem);
+      if(dx != 0) {
+        drawRed(rgb, x - dist + dx, dst, off, lo, hi, f, depth, mem);
+        drawCyan(rgb, x + dist + dx, dst, off, lo, hi, f, depth, mem);
+      }
+    }
+  }
+
+  /**
+   * Blends the red channel of a run of adjacent columns that are next to each
+   * other in the drawing order and share the same depth. Instead of drawing
+   * all blur taps of one pixel after the other each tap offset is applied to
+   * the whole run in one tight integer loop. Going from the right most tap to
+   * the left most one every output column still receives the pixels in the
+   * same order as when drawing pixel by pixel, so the result is identical.
+   *
+   * @param src The packed source pixels.
+   * @param off The offset of the source line.
+   * @param dst The packed output pixels.
+   * @param dstOff The offset of the output line.
+   * @param x The first column of the run.
+   * @param n The length of the run.
+   * @param to The output column of the first pixel of the run.
+   * @param lo The first output column.
+   * @param hi The last output column inclusive.
+   * @param wOld The weight of the old value.
+   * @param wNew The weight of the new value.
+   * @param shift The binary logarithm of the sum of the weights.
+   * @param depth The mapped depth of the run.
+   * @param depthMem Whether to use the depth memory.
+   */
+  private void redRun(final int[] src, final int off, final int[] dst,
+      final int dstOff, final int x, final int n, final int to, final int lo,
+      final int hi, final int wOld, final int wNew, final int shift,
+      final double depth, final boolean depthMem) {
+    final int start = Math.max(0, lo - to);
+    final int end = Math.min(n, hi - to + 1);
+    for(int k = start; k < end; ++k) {
+      final int c = to + k;
+      if(depthMem && -depth > redDepth[c]) {
+        continue;
+      }
+      final int o = dstOff + c;
+      final int old = dst[o];
+      final int r = wOld * (old >> 16 & 0xff) + wNew
+          * (src[off + x + k] >> 16 & 0xff) >> shift;
+      dst[o] = (old & 0x00ffff) | r << 16;
+      redDepth[c] = -depth;
+    }
+  }
+
+  /**
+   * Blends the green and blue channels of a run like <code>redRun</code> does
+   * with the red channel. Both channels are blended at once as 16 bit
+   * lanes of one integer, which cannot overflow since the weighted sums are
+   * below <code>255 * 2 * MAX_EXACT_BLUR</code>.
+   */
+  private void cyanRun(final int[] src, final int off, final int[] dst,
+      final int dstOff, final int x, final int n, final int to, final int lo,
+      final int hi, final int wOld, final int wNew, final int shift,
+      final double depth, final boolean depthMem) {
+    final int start = Math.max(0, lo - to);
+    final int end = Math.min(n, hi - to + 1);
+    for(int k = start; k < end; ++k) {
+      final int c = to + k;
+      if(depthMem && -depth > cyanDepth[c]) {
+        continue;
+      }
+      final int o = dstOff + c;
+      final int old = dst[o];
+      final int rgb = src[off + x + k];
+      final int lanesOld = (old & 0xff00) << 8 | (old & 0xff);
+      final int lanesNew = (rgb & 0xff00) << 8 | (rgb & 0xff);
+      final int v = wOld * lanesOld + wNew * lanesNew >> shift & 0x00ff00ff;
+      dst[o] = (old & 0xff0000) | (v >> 8 & 0xff00) | (v & 0xff);
+      cyanDepth[c] = -depth;
+    }
+  }
+
+  private void drawRed(final int rgb, final int x, final int[] dst,
+      final int off, final int lo, final int hi, final double f,
+      final double depth, final boolean depthMem) {
+    if(x < lo || x > hi) {
+      return;
+    }
+    if(depthMem && -depth > redDepth[x]) {
+      return;
+    }
+    dst[off + x] = blendRed(dst[off + x], (rgb >> 16) & 0xff, f);
+    redDepth[x] = -depth;
+  }
+
+  private void drawCyan(final int rgb, final int x, final int[] dst,
+      final int off, final int lo, final int hi, final double f,
+      final double depth, final boolean depthMem) {
+    if(x < lo || x > hi) {
+      return;
+    }
+    if(depthMem && -depth > cyanDepth[x]) {
+      return;
+    }
+    dst[off + x] = blendCyan(dst[off + x], (rgb >> 8) & 0xff, rgb & 0xff, f);
+    cyanDepth[x] = -depth;
+  }
+
+  /**
+   * Blends the red channel of a packed pixel.
+   *
+   * @param old The packed pixel.
+   * @param red The red value to blend in.
+   * @param f The weight of the new value.
+   * @return The new packed pixel.
+   */
+  public static int blendRed(final int old, final double red, final double f) {
+    final int r = clamp(combine((old >> 16) & 0xff, red, f));
+    return (old & 0x00ffff) | r << 16;
+  }
+
+  /**
+   * Blends the green and blue channels of a packed pixel.
+   *
+   * @param old The packed pixel.
+   * @param green The green value to blend in.
+   * @param blue The blue value to blend in.
+   * @param f The weight of the new values.
+   * @return The new packed pixel.
+   */
+  public static int blendCyan(final int old, final double green,
+      final double blue, final double f) {
+    final int g = clamp(combine((old >> 8) & 0xff, green, f));
+    final int b = clamp(combine(old & 0xff, blue, f));
+    return (old & 0xff0000) | g << 8 | b;
+  }
+
+  private static int clamp(final double color) {
+    return (int) Math.max(Picture.MIN_COLOR,
+        Math.min(Picture.MAX_COLOR, color));
+  }
+
+  private static double combine(final double orig, final double next,
+      final double f) {
+    return (1 - f) * orig + f * next;
+    // return Math.max(orig, f * next);
+  }
+
+}
@@ -0,0 +1,198 @@
+package depth;
+
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A picture whose pixels live outside of the Java heap, either in a memory
+ * mapped file or in a direct buffer. The file format is a small header
+ * followed by the raw interleaved 8 bit samples, so a mapped picture is
+ * opened without decoding and every edit goes straight to the file.
+ * <p>
+ * The header consists of the magic number, the width, the height, and the
+ * number of bands as big endian integers. Pictures are limited to 2 GB of
+ * samples.
+ */
+public class MappedPicture extends Picture {
+
+  private static final int MAGIC = 0x44505448; // DPTH
+
+  private static final int HEADER = 16;
+
+  /**
+   * Interleaved bytes in a buffer.
+   */
+  private static final class BufferData extends DataBuffer {
+
+    private final ByteBuffer buffer;
+
+    BufferData(final ByteBuffer buffer, final int size) {
+      super(TYPE_BYTE, size);
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int getElem(final int bank, final int i) {
+      return buffer.get(HEADER + i) & 0xff;
+    }
+
+    @Override
+    public void setElem(final int bank, final int i, final int val) {
+      buffer.put(HEADER + i, (byte) val);
+    }
+
+  }
+
+  private final ByteBuffer buffer;
+
+  private MappedPicture(final ByteBuffer buffer) {
+    super(image(buffer));
+    this.buffer = buffer;
+  }
+
+  private static BufferedImage image(final ByteBuffer buffer) {
+    if(buffer.getInt(0) != MAGIC) {
+      throw new IllegalArgumentException("not a raw picture");
+    }
+    final int w = buffer.getInt(4);
+    final int h = buffer.getInt(8);
+    final int bands = buffer.getInt(12);
+    final int[] offsets = new int[bands];
+    for(int i = 0; i < bands; ++i) {
+      offsets[i] = i;
+    }
+    final PixelInterleavedSampleModel sm = new PixelInterleavedSampleModel(
+        DataBuffer.TYPE_BYTE, w, h, bands, w * bands, offsets);
+    final WritableRaster r = Raster.createWritableRaster(sm, new BufferData(
+        buffer, w * h * bands), null);
+    final ColorSpace cs = ColorSpace.getInstance(bands < 3 ? ColorSpace.CS_GRAY
+        : ColorSpace.CS_sRGB);
+    final boolean alpha = bands == 2 || bands == 4;
+    final ComponentColorModel cm = new ComponentColorModel(cs, alpha, false,
+        alpha ? ComponentColorModel.TRANSLUCENT : ComponentColorModel.OPAQUE,
+        DataBuffer.TYPE_BYTE);
+    return new BufferedImage(cm, r, false, null);
+  }
+
+  private static long size(final BufferedImage img) {
+    final Raster r = img.getRaster();
+    return HEADER + (long) r.getWidth() * r.getHeight() * r.getNumBands();
+  }
+
+  private static void copy(final BufferedImage img, final ByteBuffer buffer) {
+    final Raster r = img.getRaster();
+    final int w = r.getWidth();
+    final int h = r.getHeight();
+    final int bands = r.getNumBands();
+    buffer.putInt(0, MAGIC);
+    buffer.putInt(4, w);
+    buffer.putInt(8, h);
+    buffer.putInt(12, bands);
+    final int[] line = new int[w * bands];
+    for(int y = 0; y < h; ++y) {
+      r.getPixels(0, y, w, 1, line);
+      final int off = HEADER + y * w * bands;
+      for(int i = 0; i < line.length; ++i) {
+        buffer.put(off + i, (byte) Math.max(0, Math.min(0xff, line[i])));
+      }
+    }
+  }
+
+  private static MappedByteBuffer map(final File f, final long size)
+      throws IOException {
+    if(size > Integer.MAX_VALUE) {
+      throw new IOException("picture too large: " + f);
+    }
+    final RandomAccessFile raf = new RandomAccessFile(f, "rw");
+    try {
+      final long len = size < 0 ? raf.length() : size;
+      if(size >= 0) {
+        raf.setLength(len);
+      }
+      return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, len);
+    } finally {
+      // the mapping stays valid after closing
+      raf.close();
+    }
+  }
+
+  /**
+   * Opens a raw picture file. Changes to the picture are written to the file.
+   * 
+   * @param f The file.
+   * @return The picture.
+   * @throws IOException I/O Exception or when the file is no raw picture or
+   *           is truncated.
+   */
+  public static MappedPicture open(final File f) throws IOException {
+    if(f.length() > Integer.MAX_VALUE) {
+      throw new IOException("picture too large: " + f);
+    }
+    final MappedByteBuffer buffer = map(f, -1);
+    if(buffer.capacity() < HEADER || buffer.getInt(0) != MAGIC) {
+      throw new IOException("not a raw picture: " + f);
+    }
+    final int w = buffer.getInt(4);
+    final int h = buffer.getInt(8);
+    final int bands = buffer.getInt(12);
+    if(w <= 0 || h <= 0 || bands < 1 || bands > 4) {
+      throw new IOException("corrupt header: " + f);
+    }
+    if(buffer.capacity() < HEADER + (long) w * h * bands) {
+      throw new IOException("truncated raw picture: " + f);
+    }
+    return new MappedPicture(buffer);
+  }
+
+  /**
+   * Writes an image as raw picture file and opens it.
+   * 
+   * @param f The file.
+   * @param img The image.
+   * @return The picture.
+   * @throws IOException I/O Exception.
+   */
+  public static MappedPicture create(final File f, final BufferedImage img)
+      throws IOException {
+    final MappedByteBuffer buffer = map(f, size(img));
+    copy(img, buffer);
+    return new MappedPicture(buffer);
+  }
+
+  /**
+   * Copies an image into a direct buffer outside of the heap.
+   * 
+   * @param img The image.
+   * @return The picture.
+   */
+  public static MappedPicture allocate(final BufferedImage img) {
+    final long size = size(img);
+    if(size > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("picture too large");
+    }
+    final ByteBuffer buffer = ByteBuffer.allocateDirect((int) size);
+    copy(img, buffer);
+    return new MappedPicture(buffer);
+  }
+
+  /**
+   * Writes outstanding changes of a mapped picture to the disk.
+   */
+  public void force() {
+    if(buffer instanceof MappedByteBuffer) {
+      ((MappedByteBuffer) buffer).force();
+    }
+  }
+
+}
@@ -0,0 +1,253 @@
+package depth;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Records where rendering time goes. All recording methods are lock free and
+ * allocation free so the metrics can stay enabled. The values are available
+ * through the {@link MetricsMBean} under {@link #NAME} once
+ * {@link #register()} has been called.
+ */
+public final class Metrics implements MetricsMBean {
+
+  /** The name of the MBean. */
+  public static final String NAME = "depth:type=Metrics";
+
+  private static final Metrics INSTANCE = new Metrics();
+
+  /**
+   * Getter.
+   *
+   * @return The metrics of this process.
+   */
+  public static Metrics get() {
+    return INSTANCE;
+  }
+
+  /**
+   * Registers the metrics with the platform MBean server. Does nothing when
+   * already registered.
+   *
+   * @throws JMException When the registration fails.
+   */
+  public static synchronized void register() throws JMException {
+    final ObjectName name = new ObjectName(NAME);
+    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    if(!server.isRegistered(name)) {
+      server.registerMBean(INSTANCE, name);
+    }
+  }
+
+  private volatile boolean enabled = true;
+
+  private final Histogram rows = new Histogram();
+
+  private final Histogram paints = new Histogram();
+
+  private final Histogram edits = new Histogram();
+
+  private final AtomicLong repaints = new AtomicLong();
+
+  private final AtomicLong decoded = new AtomicLong();
+
+  private final AtomicLong second = new AtomicLong();
+
+  private final AtomicLong secondRows = new AtomicLong();
+
+  private volatile long lastRows;
+
+  private Metrics() {
+    // singleton
+  }
+
+  /**
+   * Getter.
+   *
+   * @return The current time in nanoseconds or 0 when disabled, to be passed
+   *         to the recording methods.
+   */
+  public long start() {
+    return enabled ? System.nanoTime() : 0;
+  }
+
+  /**
+   * Records rendered rows.
+   *
+   * @param start The result of {@link #start()} before rendering.
+   * @param count The number of rows.
+   */
+  public void rows(final long start, final int count) {
+    if(start == 0 || count <= 0) {
+      return;
+    }
+    final long now = System.nanoTime();
+    rows.add((now - start) / count);
+    final long sec = now / 1000000000L;
+    final long cur = second.get();
+    if(sec != cur && second.compareAndSet(cur, sec)) {
+      final long last = secondRows.getAndSet(0);
+      lastRows = sec == cur + 1 ? last : 0;
+    }
+    secondRows.addAndGet(count);
+  }
+
+  /**
+   * Records a paint of a component.
+   *
+   * @param start The result of {@link #start()} before painting.
+   */
+  public void paint(final long start) {
+    if(start != 0) {
+      paints.add(System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Records a request to repaint.
+   */
+  public void repaint() {
+    if(enabled) {
+      repaints.incrementAndGet();
+    }
+  }
+
+  /**
+   * Records the time from queueing a brush dab until it is rendered.
+   *
+   * @param queued The value of {@link System#nanoTime()} when it was queued.
+   */
+  public void edit(final long queued) {
+    if(enabled) {
+      edits.add(System.nanoTime() - queued);
+    }
+  }
+
+  /**
+   * Records decoded input.
+   *
+   * @param bytes The number of bytes.
+   */
+  public void decoded(final long bytes) {
+    if(enabled) {
+      decoded.addAndGet(bytes);
+    }
+  }
+
+  @Override
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  @Override
+  public void setEnabled(final boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  @Override
+  public void reset() {
+    rows.reset();
+    paints.reset();
+    edits.reset();
+    repaints.set(0);
+    decoded.set(0);
+    secondRows.set(0);
+    lastRows = 0;
+  }
+
+  @Override
+  public long getRowsRendered() {
+    return rows.getCount();
+  }
+
+  @Override
+  public double getRowsPerSecond() {
+    // the last full second unless nothing was rendered since
+    final long sec = System.nanoTime() / 1000000000L;
+    return sec <= second.get() + 1 ? lastRows : 0;
+  }
+
+  @Override
+  public double getRowMedianMicros() {
+    return rows.quantile(0.5) / 1e3;
+  }
+
+  @Override
+  public double getRow99Micros() {
+    return rows.quantile(0.99) / 1e3;
+  }
+
+  @Override
+  public long getRepaintRequests() {
+    return repaints.get();
+  }
+
+  @Override
+  public long getPaints() {
+    return paints.getCount();
+  }
+
+  @Override
+  public double getCoalescingRatio() {
+    final long p = paints.getCount();
+    return p > 0 ? (double) repaints.get() / p : 0;
+  }
+
+  @Override
+  public double getPaintMedianMillis() {
+    return paints.quantile(0.5) / 1e6;
+  }
+
+  @Override
+  public double getPaint99Millis() {
+    return paints.quantile(0.99) / 1e6;
+  }
+
+  @Override
+  public long getEdits() {
+    return edits.getCount();
+  }
+
+  @Override
+  public double getEditMedianMillis() {
+    return edits.quantile(0.5) / 1e6;
+  }
+
+  @Override
+  public double getEdit99Millis() {
+    return edits.quantile(0.99) / 1e6;
+  }
+
+  @Override
+  public long getBytesDecoded() {
+    return decoded.get();
+  }
+
+  @Override
+  public int getQueueDepth() {
+    return RenderScheduler.getQueueDepth();
+  }
+
+  /**
+   * Summarizes the metrics for an on screen display.
+   *
+   * @return The lines of the summary.
+   */
+  public String[] summary() {
+    return new String[] {
+        String.format("rows %.0f/s  %.0f us  p99 %.0f us  queue %d",
+            getRowsPerSecond(), getRowMedianMicros(), getRow99Micros(),
+            getQueueDepth()),
+        String.format("paint %.1f ms  p99 %.1f ms  %.1f requests/paint",
+            getPaintMedianMillis(), getPaint99Millis(), getCoalescingRatio()),
+        String.format("edit %.1f ms  p99 %.1f ms  decoded %.1f MB",
+            getEditMedianMillis(), getEdit99Millis(),
+            getBytesDecoded() / 1048576.0),
+    };
+  }
+
+}
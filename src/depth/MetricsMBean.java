@@ -0,0 +1,50 @@
+package depth;
+
+/**
+ * The management interface of the {@link Metrics}.
+ */
+public interface MetricsMBean {
+
+  boolean isEnabled();
+
+  void setEnabled(boolean enabled);
+
+  /**
+   * Forgets all recorded values.
+   */
+  void reset();
+
+  long getRowsRendered();
+
+  double getRowsPerSecond();
+
+  double getRowMedianMicros();
+
+  double getRow99Micros();
+
+  long getRepaintRequests();
+
+  long getPaints();
+
+  /**
+   * Getter.
+   * 
+   * @return The number of repaint requests per actual paint.
+   */
+  double getCoalescingRatio();
+
+  double getPaintMedianMillis();
+
+  double getPaint99Millis();
+
+  long getEdits();
+
+  double getEditMedianMillis();
+
+  double getEdit99Millis();
+
+  long getBytesDecoded();
+
+  int getQueueDepth();
+
+}
@@ -0,0 +1,298 @@
+package depth;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A lazily built pyramid of down-sampled tiles of an image. Level
+ * <code>l</code> has half the resolution of level <code>l - 1</code> and level
+ * zero is the image itself. Tiles are built on demand from the level below
+ * and kept in a least recently used cache of bounded size. Only drawn tiles
+ * are cached: the tiles of the levels below that a tile is built from are
+ * built into scratch arrays, so they never push visible tiles out.
+ */
+final class MipMap {
+
+  /** The size of a tile in tile pixels. */
+  public static final int TILE = 256;
+
+  /** The maximal size of the cached tiles in bytes. */
+  public static final long MAX_BYTES = 32L << 20;
+
+  private final BufferedImage base;
+
+  private final int width;
+
+  private final int height;
+
+  private final int levels;
+
+  private final Map<Long, BufferedImage> tiles =
+      new LinkedHashMap<Long, BufferedImage>(16, 0.75f, true);
+
+  /** The size of the cached tiles in bytes. */
+  private long bytes;
+
+  /** The number of columns of dirty cells. */
+  private final int cellCols;
+
+  /**
+   * The areas of the image that changed since the tiles were last checked,
+   * in cells of the size of a level one tile.
+   */
+  private final boolean[] dirty;
+
+  /** Whether any cell is dirty. */
+  private boolean anyDirty;
+
+  public MipMap(final BufferedImage base) {
+    this.base = base;
+    width = base.getWidth();
+    height = base.getHeight();
+    int l = 0;
+    while(levelWidth(l) > TILE || levelHeight(l) > TILE) {
+      ++l;
+    }
+    levels = l + 1;
+    final int cell = 2 * TILE;
+    cellCols = (width + cell - 1) / cell;
+    dirty = new boolean[cellCols * ((height + cell - 1) / cell)];
+  }
+
+  /**
+   * Computes the level to draw at.
+   * 
+   * @param scale The scale of the image on screen.
+   * @return The level with a resolution of at least the given scale.
+   */
+  public int level(final double scale) {
+    if(scale >= 0.5 || scale <= 0) {
+      return 0;
+    }
+    final int l = (int) Math.floor(Math.log(1 / scale) / Math.log(2));
+    return Math.min(l, levels - 1);
+  }
+
+  private int levelWidth(final int level) {
+    return ((width - 1) >> level) + 1;
+  }
+
+  private int levelHeight(final int level) {
+    return ((height - 1) >> level) + 1;
+  }
+
+  private static Long key(final int level, final int tx, final int ty) {
+    return Long.valueOf((long) level << 56 | (long) tx << 28 | ty);
+  }
+
+  /**
+   * Draws the tiles of the given level that intersect the visible area.
+   * 
+   * @param g The graphics context in image coordinates.
+   * @param level The level.
+   * @param visible The visible area in image coordinates.
+   */
+  public void draw(final Graphics2D g, final int level,
+      final Rectangle visible) {
+    final int size = TILE << level;
+    final Rectangle area = visible.intersection(new Rectangle(0, 0, width,
+        height));
+    if(area.isEmpty()) {
+      return;
+    }
+    final int tx0 = area.x / size;
+    final int ty0 = area.y / size;
+    final int tx1 = (area.x + area.width - 1) / size;
+    final int ty1 = (area.y + area.height - 1) / size;
+    for(int ty = ty0; ty <= ty1; ++ty) {
+      for(int tx = tx0; tx <= tx1; ++tx) {
+        final BufferedImage tile = tile(level, tx, ty);
+        final int x = tx * size;
+        final int y = ty * size;
+        final int w = Math.min(tile.getWidth() << level, width - x);
+        final int h = Math.min(tile.getHeight() << level, height - y);
+        g.drawImage(tile, x, y, x + w, y + h, 0, 0, tile.getWidth(),
+            tile.getHeight(), null);
+      }
+    }
+  }
+
+  /**
+   * Drops all tiles that cover the given area of the image. The area is only
+   * marked here and the tiles are dropped before the next tile is used, so
+   * that writing single pixels does not go through all tiles every time.
+   * 
+   * @param x The x coordinate.
+   * @param y The y coordinate.
+   * @param w The width.
+   * @param h The height.
+   */
+  public synchronized void invalidate(final int x, final int y, final int w,
+      final int h) {
+    if(tiles.isEmpty() || w <= 0 || h <= 0) {
+      return;
+    }
+    final int cell = 2 * TILE;
+    final int cx0 = Math.max(0, x) / cell;
+    final int cy0 = Math.max(0, y) / cell;
+    final int cx1 = Math.min(width - 1, x + w - 1) / cell;
+    final int cy1 = Math.min(height - 1, y + h - 1) / cell;
+    for(int cy = cy0; cy <= cy1; ++cy) {
+      for(int cx = cx0; cx <= cx1; ++cx) {
+        dirty[cy * cellCols + cx] = true;
+        anyDirty = true;
+      }
+    }
+  }
+
+  /**
+   * Drops the tiles that cover a dirty cell and clears the cells.
+   */
+  private void dropDirty() {
+    if(!anyDirty) {
+      return;
+    }
+    final int rows = dirty.length / cellCols;
+    final Iterator<Map.Entry<Long, BufferedImage>> it = tiles.entrySet()
+        .iterator();
+    while(it.hasNext()) {
+      final Map.Entry<Long, BufferedImage> e = it.next();
+      final long k = e.getKey();
+      final int level = (int) (k >>> 56);
+      final int tx = (int) (k >>> 28 & 0xfffffff);
+      final int ty = (int) (k & 0xfffffff);
+      // a tile of level l covers 2^(l - 1) by 2^(l - 1) cells
+      final int n = 1 << level - 1;
+      final int cx1 = Math.min(cellCols, (tx + 1) * n);
+      final int cy1 = Math.min(rows, (ty + 1) * n);
+      boolean drop = false;
+      for(int cy = ty * n; cy < cy1 && !drop; ++cy) {
+        for(int cx = tx * n; cx < cx1; ++cx) {
+          if(dirty[cy * cellCols + cx]) {
+            drop = true;
+            break;
+          }
+        }
+      }
+      if(drop) {
+        bytes -= bytes(e.getValue());
+        it.remove();
+      }
+    }
+    Arrays.fill(dirty, false);
+    anyDirty = false;
+  }
+
+  private synchronized BufferedImage tile(final int level, final int tx,
+      final int ty) {
+    dropDirty();
+    final Long k = key(level, tx, ty);
+    BufferedImage tile = tiles.get(k);
+    if(tile == null) {
+      final int w = tileWidth(level, tx);
+      final int h = tileHeight(level, ty);
+      tile = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+      tile.setRGB(0, 0, w, h, pixels(level, tx, ty), 0, w);
+      tiles.put(k, tile);
+      bytes += bytes(tile);
+      trim();
+    }
+    return tile;
+  }
+
+  private static long bytes(final BufferedImage tile) {
+    return 4L * tile.getWidth() * tile.getHeight();
+  }
+
+  /**
+   * Drops the least recently used tiles until the cache fits its size. The
+   * most recent tile is always kept.
+   */
+  private void trim() {
+    final Iterator<BufferedImage> it = tiles.values().iterator();
+    while(bytes > MAX_BYTES && tiles.size() > 1) {
+      bytes -= bytes(it.next());
+      it.remove();
+    }
+  }
+
+  private int tileWidth(final int level, final int tx) {
+    return (Math.min(2 * TILE, levelWidth(level - 1) - 2 * TILE * tx) + 1) / 2;
+  }
+
+  private int tileHeight(final int level, final int ty) {
+    return (Math.min(2 * TILE, levelHeight(level - 1) - 2 * TILE * ty) + 1)
+        / 2;
+  }
+
+  /**
+   * Computes the pixels of a tile by averaging two by two blocks of the level
+   * below. A cached tile is used as is, but no tile is added to the cache.
+   * 
+   * @param level The level of the tile.
+   * @param tx The tile column.
+   * @param ty The tile row.
+   * @return The pixels of the tile, row by row.
+   */
+  private int[] pixels(final int level, final int tx, final int ty) {
+    final BufferedImage cached = tiles.get(key(level, tx, ty));
+    if(cached != null) {
+      return cached.getRGB(0, 0, cached.getWidth(), cached.getHeight(), null,
+          0, cached.getWidth());
+    }
+    final int sw = Math.min(2 * TILE, levelWidth(level - 1) - 2 * TILE * tx);
+    final int sh = Math.min(2 * TILE, levelHeight(level - 1) - 2 * TILE * ty);
+    final int[] src = new int[sw * sh];
+    if(level == 1) {
+      base.getRGB(2 * TILE * tx, 2 * TILE * ty, sw, sh, src, 0, sw);
+    } else {
+      for(int j = 0; j < 2; ++j) {
+        for(int i = 0; i < 2; ++i) {
+          if(i * TILE >= sw || j * TILE >= sh) {
+            continue;
+          }
+          final int cx = 2 * tx + i;
+          final int cy = 2 * ty + j;
+          final int cw = tileWidth(level - 1, cx);
+          final int ch = tileHeight(level - 1, cy);
+          final int[] child = pixels(level - 1, cx, cy);
+          for(int y = 0; y < ch; ++y) {
+            System.arraycopy(child, y * cw, src, (j * TILE + y) * sw + i
+                * TILE, cw);
+          }
+        }
+      }
+    }
+    final int w = (sw + 1) / 2;
+    final int h = (sh + 1) / 2;
+    final int[] dst = new int[w * h];
+    for(int y = 0; y < h; ++y) {
+      final int y0 = 2 * y * sw;
+      final int y1 = Math.min(2 * y + 1, sh - 1) * sw;
+      for(int x = 0; x < w; ++x) {
+        final int x0 = 2 * x;
+        final int x1 = Math.min(2 * x + 1, sw - 1);
+        dst[y * w + x] = average(src[y0 + x0], src[y0 + x1], src[y1 + x0],
+            src[y1 + x1]);
+      }
+    }
+    return dst;
+  }
+
+  private static int average(final int a, final int b, final int c,
+      final int d) {
+    int res = 0;
+    for(int shift = 0; shift < 32; shift += 8) {
+      final int sum = (a >>> shift & 0xff) + (b >>> shift & 0xff)
+          + (c >>> shift & 0xff) + (d >>> shift & 0xff);
+      res |= (sum + 2) / 4 << shift;
+    }
+    return res;
+  }
+
+}
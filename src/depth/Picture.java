@@ -1,6 +1,8 @@
 package depth;
 
 import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.awt.image.Raster;
 import java.awt.image.WritableRaster;
@@ -19,6 +21,8 @@ public class Picture {
 
   private final BufferedImage img;
 
+  private volatile MipMap mip;
+
   public Picture(final BufferedImage img) {
     this.img = img;
     out = img.getRaster();
@@ -53,6 +57,16 @@ public class Picture {
       return;
     }
     out.setPixel(x, y, pixel);
+    changed(x, y, 1, 1);
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The image of the picture.
+   */
+  public BufferedImage getImage() {
+    return img;
   }
 
   protected Raster getRaster() {
@@ -63,10 +77,52 @@ public class Picture {
     return Math.max(MIN_COLOR, Math.min(MAX_COLOR, color));
   }
 
+  /**
+   * Draws the picture. When the picture is scaled down to less than half its
+   * size only the visible tiles of the matching level of the mip map are
+   * drawn.
+   * 
+   * @param g The graphics context.
+   */
   public void draw(final Graphics g) {
+    if(g instanceof Graphics2D) {
+      final Graphics2D g2 = (Graphics2D) g;
+      final Rectangle clip = g2.getClipBounds();
+      final double scale = g2.getTransform().getScaleX();
+      if(clip != null && scale < 0.5) {
+        final MipMap m = getMipMap();
+        final int level = m.level(scale);
+        if(level > 0) {
+          m.draw(g2, level, clip);
+          return;
+        }
+      }
+    }
     g.drawImage(img, 0, 0, null);
   }
 
+  private synchronized MipMap getMipMap() {
+    if(mip == null) {
+      mip = new MipMap(img);
+    }
+    return mip;
+  }
+
+  /**
+   * Must be called after pixels of the image have changed.
+   * 
+   * @param x The x coordinate.
+   * @param y The y coordinate.
+   * @param w The width.
+   * @param h The height.
+   */
+  protected void changed(final int x, final int y, final int w, final int h) {
+    final MipMap m = mip;
+    if(m != null) {
+      m.invalidate(x, y, w, h);
+    }
+  }
+
   public double getDepth(final int x, final int y) {
     return getPixel(x, y)[0];
   }
@@ -76,8 +132,37 @@ public class Picture {
     setPixel(x, y, pixel);
   }
 
-  public void editDepth(final int xPos, final int yPos, final int radius,
-      final double by, final Picture3D listener) {
+  /**
+   * Sets the depth values of adjacent pixels of a line.
+   * 
+   * @param x The first column.
+   * @param y The line.
+   * @param depths The depth values.
+   * @param len The number of pixels.
+   */
+  public void setDepths(final int x, final int y, final int[] depths,
+      final int len) {
+    final double[] pixel = { 0, 0, 0, MAX_COLOR};
+    for(int i = 0; i < len; ++i) {
+      pixel[0] = pixel[1] = pixel[2] = depths[i];
+      out.setPixel(x + i, y, pixel);
+    }
+    changed(x, y, len, 1);
+  }
+
+  /**
+   * Raises or lowers the depth within a circle.
+   * 
+   * @param xPos The x center.
+   * @param yPos The y center.
+   * @param radius The radius.
+   * @param by The amount to change the depth by.
+   * @param listener Is notified about every changed line or may be
+   *          <code>null</code>.
+   * @return The changed area or <code>null</code> if nothing changed.
+   */
+  public Rectangle editDepth(final int xPos, final int yPos, final int radius,
+      final double by, final DepthListener listener) {
     final double r2 = (double) radius * (double) radius;
     double min = Double.POSITIVE_INFINITY;
     double max = Double.NEGATIVE_INFINITY;
@@ -103,11 +188,13 @@ public class Picture {
         }
       }
     }
+    Rectangle changed = null;
     for(int y = yPos - radius; y <= yPos + radius; ++y) {
       if(!inRangeY(y)) {
         continue;
       }
-      boolean chg = false;
+      int from = Integer.MAX_VALUE;
+      int to = Integer.MIN_VALUE;
       for(int x = xPos - radius; x <= xPos + radius; ++x) {
         if(!inRangeX(x)) {
           continue;
@@ -117,12 +204,28 @@ public class Picture {
         if(diffX * diffX + diffY * diffY > r2) {
           continue;
         }
-        chg |= editPixel(x, y, by, by > 0 ? max : min, max == min);
+        if(editPixel(x, y, by, by > 0 ? max : min, max == min)) {
+          from = Math.min(from, x);
+          to = Math.max(to, x);
+        }
       }
-      if(chg && listener != null) {
-        listener.updateLine(y);
+      if(from > to) {
+        continue;
+      }
+      final Rectangle line = new Rectangle(from, y, to - from + 1, 1);
+      if(changed == null) {
+        changed = line;
+      } else {
+        changed.add(line);
+      }
+      if(listener != null) {
+        listener.depthChanged(y, from, to);
       }
     }
+    if(changed != null) {
+      changed(changed.x, changed.y, changed.width, changed.height);
+    }
+    return changed;
   }
 
   private boolean editPixel(final int x, final int y, final double by,
@@ -158,7 +261,8 @@ public class Picture {
     if(d == nd) {
       return false;
     }
-    setDepth(x, y, nd);
+    final double[] pixel = { nd, nd, nd, MAX_COLOR};
+    out.setPixel(x, y, pixel);
     return true;
   }
 
@@ -1,15 +1,19 @@
 package depth;
 
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.awt.image.Raster;
-import java.util.Arrays;
-import java.util.Comparator;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.awt.image.WritableRaster;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 import javax.swing.JComponent;
 
-public class Picture3D extends Picture implements Producer3D {
+public class Picture3D extends Picture implements Producer3D, DepthListener {
 
   public static enum RenderMode {
 
@@ -21,6 +25,10 @@ public class Picture3D extends Picture implements Producer3D {
 
     DEPTH_MEM(0, true, false, false),
 
+    DEPTH_MEM_FILL_LOG(0, true, false, true, true),
+
+    DEPTH_MEM_FILL(0, true, false, false, true),
+
     ;
 
     public final int blur;
@@ -31,187 +39,1028 @@ public class Picture3D extends Picture implements Producer3D {
 
     public final boolean logScale;
 
+    /**
+     * Whether columns that no pixel is drawn to are filled from the farther
+     * of their neighbours instead of staying black.
+     */
+    public final boolean fill;
+
     private RenderMode(final int blur, final boolean depthMem,
         final boolean sort, final boolean logScale) {
+      this(blur, depthMem, sort, logScale, false);
+    }
+
+    private RenderMode(final int blur, final boolean depthMem,
+        final boolean sort, final boolean logScale, final boolean fill) {
       this.blur = blur;
       this.depthMem = depthMem;
       this.sort = sort;
       this.logScale = logScale;
+      this.fill = fill;
     }
   }
 
-  private final Raster imgRaster;
+  private final int[] src;
+
+  private final int[] dst;
+
   private final Raster depthRaster;
 
-  private final Producer3D prod;
+  private volatile boolean runKernel = true;
+
+  private final AtomicInteger requests = new AtomicInteger();
+
+  private final AtomicIntegerArray rowRequests;
+
+  /** The number of lines sharing a version. */
+  private static final int BAND = 16;
+
+  /** The number of locks guarding the publishing of lines. */
+  private static final int STRIPES = 16;
+
+  /** The version of the depth values of every band of lines. */
+  private final AtomicIntegerArray bandVersions = new AtomicIntegerArray(
+      (height + BAND - 1) / BAND);
+
+  private final Object[] publishLocks = locks(STRIPES);
+
+  /** The largest side of the preview of a progressive render. */
+  public static final int PREVIEW = 256;
+
+  /** The coarse picture shown until a progressive render has finished. */
+  private volatile Picture3D preview;
+
+  /** The side of the tiles whose staleness is tracked. */
+  public static final int TILE = 128;
+
+  private final int tilesX = (width + TILE - 1) / TILE;
+
+  private final int tilesY = (height + TILE - 1) / TILE;
+
+  /** The latest request of every tile. */
+  private final AtomicIntegerArray tileRequests = new AtomicIntegerArray(
+      tilesX * tilesY);
+
+  /** The latest request of every tile that is scheduled. */
+  private final AtomicIntegerArray tileQueued = new AtomicIntegerArray(
+      tilesX * tilesY);
+
+  /** The latest request of every tile that is rendered. */
+  private final AtomicIntegerArray tileDone = new AtomicIntegerArray(
+      tilesX * tilesY);
+
+  /**
+   * A viewport aware render of all tiles.
+   */
+  private static final class Pass {
+
+    /** The request. */
+    final int stamp;
+
+    /** The component to repaint. */
+    final JComponent comp;
+
+    /** The number of tiles that are not rendered yet. */
+    final AtomicInteger left;
+
+    Pass(final int stamp, final JComponent comp, final int tiles) {
+      this.stamp = stamp;
+      this.comp = comp;
+      left = new AtomicInteger(tiles);
+    }
+
+  }
+
+  private volatile Pass pass;
+
+  private volatile boolean viewportOnly;
+
+  private final ThreadLocal<LineRenderer> renderers =
+      new ThreadLocal<LineRenderer>() {
+
+        @Override
+        protected LineRenderer initialValue() {
+          return new LineRenderer(width);
+        }
+
+      };
 
   public Picture3D(final BufferedImage img, final BufferedImage depth) {
-    super(new BufferedImage(img.getWidth(), img.getHeight(),
-        BufferedImage.TYPE_INT_RGB));
-    imgRaster = img.getData();
-    depthRaster = depth.getData();
-    prod = this;
+    this(img.getRaster(), depth.getRaster());
   }
 
   public Picture3D(final Picture img, final Picture depth) {
+    this(img.getRaster(), depth.getRaster());
+  }
+
+  private Picture3D(final Raster img, final Raster depth) {
     super(new BufferedImage(img.getWidth(), img.getHeight(),
         BufferedImage.TYPE_INT_RGB));
-    imgRaster = img.getRaster();
-    depthRaster = depth.getRaster();
-    prod = this;
+    src = new int[width * height];
+    packPixels(img, src);
+    depthRaster = depth;
+    dst = ((DataBufferInt) getRaster().getDataBuffer()).getData();
+    rowRequests = new AtomicIntegerArray(height);
+  }
+
+  /**
+   * Creates a picture that shares the source pixels and depth map with another
+   * picture but renders into its own output image. Render settings are not
+   * shared.
+   * 
+   * @param shared The picture whose input is used.
+   */
+  Picture3D(final Picture3D shared) {
+    super(new BufferedImage(shared.width, shared.height,
+        BufferedImage.TYPE_INT_RGB));
+    src = shared.src;
+    depthRaster = shared.depthRaster;
+    dst = ((DataBufferInt) getRaster().getDataBuffer()).getData();
+    rowRequests = new AtomicIntegerArray(height);
+    setRenderMode(shared.renderMode);
+    setFactor(shared.getFactor());
+    setDepthCurve(shared.curve);
+    filtered = shared.filtered;
+  }
+
+  private static Object[] locks(final int count) {
+    final Object[] res = new Object[count];
+    for(int i = 0; i < count; ++i) {
+      res[i] = new Object();
+    }
+    return res;
+  }
+
+  /**
+   * Packs the rgb values of the pixels of a raster. The raster may have fewer
+   * lines than fit into the plane.
+   * 
+   * @param r The raster.
+   * @param plane The plane to fill.
+   */
+  static void packPixels(final Raster r, final int[] plane) {
+    final int w = r.getWidth();
+    final int h = r.getHeight();
+    final int bands = r.getNumBands();
+    final int[] line = new int[w * bands];
+    for(int y = 0; y < h; ++y) {
+      r.getPixels(r.getMinX(), r.getMinY() + y, w, 1, line);
+      final int off = y * w;
+      for(int x = 0; x < w; ++x) {
+        final int p = x * bands;
+        final int red = line[p];
+        final int green = bands > 1 ? line[p + 1] : 0;
+        final int blue = bands > 2 ? line[p + 2] : 0;
+        plane[off + x] = channel(red) << 16 | channel(green) << 8
+            | channel(blue);
+      }
+    }
+  }
+
+  /**
+   * Reads the depth values of a raster. The raster may have fewer lines than
+   * fit into the plane.
+   * 
+   * @param r The raster.
+   * @param plane The plane to fill.
+   */
+  static void packDepth(final Raster r, final byte[] plane) {
+    final int w = r.getWidth();
+    final int h = r.getHeight();
+    final int[] line = new int[w];
+    for(int y = 0; y < h; ++y) {
+      r.getSamples(r.getMinX(), r.getMinY() + y, w, 1, 0, line);
+      final int off = y * w;
+      for(int x = 0; x < w; ++x) {
+        plane[off + x] = (byte) channel(line[x]);
+      }
+    }
+  }
+
+  private static int channel(final int v) {
+    return Math.max(0, Math.min(0xff, v));
+  }
+
+  /**
+   * Reads the depth values of the given columns of a line. Every render reads
+   * into its own line so concurrent renders of the same line never see each
+   * others reads.
+   *
+   * @param y The line.
+   * @param from The first column.
+   * @param to The last column inclusive.
+   * @param into The depth line to fill at the same columns.
+   */
+  private void loadDepth(final int y, final int from, final int to,
+      final byte[] into) {
+    final Filtered f = filtered;
+    if(f != null) {
+      System.arraycopy(f.plane, y * width + from, into, from, to - from + 1);
+      return;
+    }
+    final int[] line = depthRaster.getSamples(from, y, to - from + 1, 1, 0,
+        (int[]) null);
+    for(int i = 0; i < line.length; ++i) {
+      into[from + i] = (byte) channel(line[i]);
+    }
+  }
+
+  /**
+   * Sets the output to a previously rendered anaglyph of the same input and
+   * settings instead of rendering it.
+   * 
+   * @param res The anaglyph.
+   */
+  public void setRendered(final BufferedImage res) {
+    if(res.getWidth() != width || res.getHeight() != height) {
+      throw new IllegalArgumentException("size mismatch");
+    }
+    packPixels(res.getRaster(), dst);
+    changed(0, 0, width, height);
   }
 
+  /**
+   * Renders all lines. Canvases get a progressive render that starts with the
+   * visible rows.
+   * 
+   * @param c The component to repaint.
+   */
   public void update(final JComponent c) {
-    updateLines(0, height - 1, c);
+    if(c instanceof Canvas) {
+      updateProgressive(c, ((Canvas) c).getVisibleImageRect());
+    } else {
+      updateLines(0, height - 1, c);
+    }
   }
 
-  public void updateLines(final int lower, final int upper, final JComponent c) {
-    final ExecutorService pool = Executors.newCachedThreadPool();
-    for(int y = lower; y <= upper; ++y) {
-      if(!inRangeY(y)) {
-        continue;
+  /**
+   * Renders all lines progressively. First a downsampled picture is rendered
+   * in the calling thread and shown scaled up. Then the full resolution is
+   * rendered in tiles on the {@link RenderScheduler}, the visible tiles first,
+   * and replaces the preview as tiles finish. When only the viewport is
+   * rendered the other tiles stay stale until they are drawn.
+   * 
+   * @param c The component to repaint.
+   * @param visible The visible area in image coordinates or <code>null</code>
+   *          to render top to bottom.
+   */
+  public void updateProgressive(final JComponent c, final Rectangle2D visible) {
+    final int stamp = requests.incrementAndGet();
+    final int tiles = tilesX * tilesY;
+    for(int t = 0; t < tiles; ++t) {
+      tileRequests.set(t, stamp);
+    }
+    final int scale = (Math.max(width, height) + PREVIEW - 1) / PREVIEW;
+    Picture3D p = null;
+    if(scale > 1) {
+      p = downsample(scale);
+      p.render();
+    }
+    final Pass ps = new Pass(stamp, c, tiles);
+    preview = p;
+    pass = ps;
+    c.repaint();
+    final Rectangle vis = visible != null ? visible.getBounds().intersection(
+        new Rectangle(0, 0, width, height)) : new Rectangle(0, 0, width,
+        height);
+    if(vis.isEmpty()) {
+      return;
+    }
+    final int tx0 = vis.x / TILE;
+    final int ty0 = vis.y / TILE;
+    final int tx1 = (vis.x + vis.width - 1) / TILE;
+    final int ty1 = (vis.y + vis.height - 1) / TILE;
+    for(int ty = ty0; ty <= ty1; ++ty) {
+      for(int tx = tx0; tx <= tx1; ++tx) {
+        request(ty * tilesX + tx, ps);
+      }
+    }
+    if(viewportOnly) {
+      return;
+    }
+    // the other tiles by growing distance to the viewport
+    final int rings = Math.max(Math.max(tx0, tilesX - 1 - tx1), Math.max(ty0,
+        tilesY - 1 - ty1));
+    for(int r = 1; r <= rings; ++r) {
+      for(int ty = ty0 - r; ty <= ty1 + r; ++ty) {
+        if(ty < 0 || ty >= tilesY) {
+          continue;
+        }
+        final boolean edge = ty == ty0 - r || ty == ty1 + r;
+        for(int tx = tx0 - r; tx <= tx1 + r; tx += edge ? 1 : tx1 - tx0 + 2
+            * r) {
+          if(tx >= 0 && tx < tilesX) {
+            request(ty * tilesX + tx, ps);
+          }
+        }
       }
-      final int curY = y;
-      pool.execute(new Runnable() {
+    }
+  }
 
-        @Override
-        public void run() {
-          updateLine(curY);
-          c.repaint();
+  /**
+   * Schedules a tile unless it is already scheduled for the pass.
+   * 
+   * @param t The tile.
+   * @param ps The pass.
+   */
+  private void request(final int t, final Pass ps) {
+    if(tileQueued.getAndSet(t, ps.stamp) == ps.stamp) {
+      return;
+    }
+    RenderScheduler.execute(new Runnable() {
+
+      @Override
+      public void run() {
+        if(tileRequests.get(t) != ps.stamp) {
+          // a newer request owns the tile
+          return;
+        }
+        final int x0 = (t % tilesX) * TILE;
+        final int y0 = (t / tilesX) * TILE;
+        final int x1 = Math.min(x0 + TILE, width) - 1;
+        final int y1 = Math.min(y0 + TILE, height) - 1;
+        final long time = Metrics.get().start();
+        for(int y = y0; y <= y1; ++y) {
+          renderWindow(y, x0, x1);
+        }
+        Metrics.get().rows(time, y1 - y0 + 1);
+        changed(x0, y0, x1 - x0 + 1, y1 - y0 + 1);
+        if(tileDone.getAndSet(t, ps.stamp) == ps.stamp) {
+          return;
         }
+        if(ps.left.decrementAndGet() == 0 && pass == ps) {
+          preview = null;
+          ps.comp.repaint();
+          return;
+        }
+        final Rectangle rect = new Rectangle(x0, y0, x1 - x0 + 1, y1 - y0 + 1);
+        if(ps.comp instanceof Canvas) {
+          ((Canvas) ps.comp).repaintImage(rect);
+        } else {
+          ps.comp.repaint();
+        }
+      }
 
-      });
+    });
+  }
+
+  /**
+   * Whether an area has not been rendered with the current settings yet.
+   * 
+   * @param rect The area.
+   * @return Whether any tile intersecting the area is stale.
+   */
+  public boolean isStale(final Rectangle rect) {
+    final Rectangle r = rect.intersection(new Rectangle(0, 0, width, height));
+    if(r.isEmpty()) {
+      return false;
+    }
+    for(int ty = r.y / TILE; ty <= (r.y + r.height - 1) / TILE; ++ty) {
+      for(int tx = r.x / TILE; tx <= (r.x + r.width - 1) / TILE; ++tx) {
+        final int t = ty * tilesX + tx;
+        if(tileDone.get(t) != tileRequests.get(t)) {
+          return true;
+        }
+      }
     }
-    pool.shutdown();
+    return false;
   }
 
-  private static final double FACTOR = MAX_COLOR / Math.log(MAX_COLOR + 1);
+  /**
+   * Getter.
+   * 
+   * @return The number of tiles of the current progressive render that are
+   *         still stale.
+   */
+  public int getStaleTiles() {
+    final Pass ps = pass;
+    return ps != null ? ps.left.get() : 0;
+  }
 
-  private double depth(final int x, final int y) {
-    final double depth = depthRaster.getPixel(x, y, new double[4])[0];
-    if(renderMode.logScale) {
-      return Math.log(depth + 1) * FACTOR;
+  /**
+   * Setter.
+   * 
+   * @param viewportOnly Whether progressive renders only render the visible
+   *          tiles. The other tiles are rendered when they are drawn.
+   */
+  public void setViewportOnly(final boolean viewportOnly) {
+    this.viewportOnly = viewportOnly;
+  }
+
+  public boolean isViewportOnly() {
+    return viewportOnly;
+  }
+
+  /**
+   * Creates a picture of every <code>scale</code>th pixel with the same
+   * settings and a disparity scaled down accordingly.
+   * 
+   * @param scale The scale.
+   * @return The preview.
+   */
+  private Picture3D downsample(final int scale) {
+    final int w = (width + scale - 1) / scale;
+    final int h = (height + scale - 1) / scale;
+    final BufferedImage img = new BufferedImage(w, h,
+        BufferedImage.TYPE_INT_RGB);
+    final int[] pix = ((DataBufferInt) img.getRaster().getDataBuffer())
+        .getData();
+    final BufferedImage depth = new BufferedImage(w, h,
+        BufferedImage.TYPE_BYTE_GRAY);
+    final WritableRaster dr = depth.getRaster();
+    final byte[] line = new byte[width];
+    for(int y = 0; y < h; ++y) {
+      final int sy = y * scale;
+      loadDepth(sy, 0, width - 1, line);
+      for(int x = 0; x < w; ++x) {
+        pix[y * w + x] = src[sy * width + x * scale];
+        dr.setSample(x, y, 0, line[x * scale] & 0xff);
+      }
     }
-    return depth;
+    final Picture3D p = new Picture3D(img, depth);
+    final Transfer tr = transfer;
+    p.setRenderMode(tr.mode);
+    p.setFactor(getFactor() / scale);
+    p.setDepthCurve(curve);
+    return p;
   }
 
-  private double[] origPixel(final int x, final int y) {
-    return imgRaster.getPixel(x, y, new double[4]);
+  /**
+   * Draws the picture. While a progressive render is running the preview is
+   * drawn scaled up below the tiles that are already finished, and stale
+   * tiles that get drawn are scheduled.
+   */
+  @Override
+  public void draw(final Graphics g) {
+    final Pass ps = pass;
+    if(ps == null || ps.left.get() == 0) {
+      super.draw(g);
+      return;
+    }
+    final Rectangle clip = g.getClipBounds();
+    final Rectangle r = (clip != null ? clip : new Rectangle(0, 0, width,
+        height)).intersection(new Rectangle(0, 0, width, height));
+    if(r.isEmpty()) {
+      return;
+    }
+    final int tx0 = r.x / TILE;
+    final int ty0 = r.y / TILE;
+    final int tx1 = (r.x + r.width - 1) / TILE;
+    final int ty1 = (r.y + r.height - 1) / TILE;
+    for(int ty = ty0; ty <= ty1; ++ty) {
+      for(int tx = tx0; tx <= tx1; ++tx) {
+        final int t = ty * tilesX + tx;
+        if(tileDone.get(t) != ps.stamp) {
+          request(t, ps);
+        }
+      }
+    }
+    final Picture3D p = preview;
+    if(p == null) {
+      super.draw(g);
+      return;
+    }
+    g.drawImage(p.getImage(), 0, 0, width, height, null);
+    final BufferedImage img = getImage();
+    for(int ty = ty0; ty <= ty1; ++ty) {
+      final int y0 = ty * TILE;
+      final int y1 = Math.min(y0 + TILE, height);
+      int tx = tx0;
+      while(tx <= tx1) {
+        if(tileDone.get(ty * tilesX + tx) != ps.stamp) {
+          ++tx;
+          continue;
+        }
+        final int start = tx;
+        while(tx <= tx1 && tileDone.get(ty * tilesX + tx) == ps.stamp) {
+          ++tx;
+        }
+        final int x0 = start * TILE;
+        final int x1 = Math.min(tx * TILE, width);
+        g.drawImage(img, x0, y0, x1, y1, x0, y0, x1, y1, null);
+      }
+    }
   }
 
-  public void updateLine(final int y) {
-    final double[] black = { 0, 0, 0, MAX_COLOR};
-    final Integer[] perm = new Integer[width];
-    for(int x = 0; x < width; ++x) {
-      perm[x] = x;
-      setPixel(x, y, black);
+  /**
+   * Renders full color views into an output format. The lines are rendered
+   * in bands on the {@link RenderScheduler} and the method waits until all
+   * are done. The output of this picture is not touched.
+   * <p>
+   * The views use the disparity factor, the depth curve, and the depth
+   * mapping of the render mode, but no other settings of the render mode.
+   * Every view is drawn far to near without blur, depth memory, or hole
+   * filling, and uncovered columns keep the pixel of the flat image.
+   * 
+   * @param fmt The output format. It must have the size of this picture.
+   * @throws InterruptedException When interrupted while waiting.
+   */
+  public void renderViews(final ViewFormat fmt) throws InterruptedException {
+    if(fmt.width != width || fmt.height != height) {
+      throw new IllegalArgumentException("size mismatch");
     }
-    if(renderMode.sort) {
-      Arrays.sort(perm, new Comparator<Integer>() {
+    final int band = RenderScheduler.bandSize(height);
+    final CountDownLatch done = new CountDownLatch((height + band - 1) / band);
+    for(int y = 0; y < height; y += band) {
+      final int start = y;
+      final int end = Math.min(y + band, height);
+      RenderScheduler.execute(new Runnable() {
 
         @Override
-        public int compare(final Integer i1, final Integer i2) {
-          final double d1 = depth(i1, y);
-          final double d2 = depth(i2, y);
-          return Double.compare(d2, d1);
+        public void run() {
+          try {
+            final LineRenderer r = renderer();
+            final byte[] depth = r.getDepthLine();
+            final int[][] lines = new int[fmt.getViews()][width];
+            for(int row = start; row < end; ++row) {
+              final Transfer tr = transfer;
+              loadDepth(row, 0, width - 1, depth);
+              r.renderViews(src, row * width, depth, 0, lines, tr);
+              for(int v = 0; v < lines.length; ++v) {
+                fmt.putLine(v, row, lines[v]);
+              }
+            }
+          } finally {
+            done.countDown();
+          }
         }
 
       });
     }
-    final double[] redDepth = new double[width];
-    final double[] cyanDepth = new double[width];
-    for(int x = 0; x < width; ++x) {
-      final int rx = perm[x];
-      drawPixel(origPixel(rx, y), depth(rx, y), rx, y, redDepth, cyanDepth);
-    }
+    done.await();
   }
 
-  public void setFactor(final double factor) {
-    this.factor = factor / MAX_COLOR;
+  /**
+   * Renders all lines in the calling thread.
+   */
+  public void render() {
+    for(int y = 0; y < height; ++y) {
+      updateLine(y);
+    }
   }
 
-  public double getFactor() {
-    return factor * MAX_COLOR;
+  /**
+   * Renders the given rows in bands on the {@link RenderScheduler}. Rows that
+   * are requested again before their band reaches them are only rendered by
+   * the newer request. The component is repainted once per band.
+   *
+   * @param lower The first row.
+   * @param upper The last row inclusive.
+   * @param c The component to repaint.
+   */
+  public void updateLines(final int lower, final int upper, final JComponent c) {
+    final int from = Math.max(lower, 0);
+    final int to = Math.min(upper, height - 1);
+    if(from > to) {
+      return;
+    }
+    final int stamp = requests.incrementAndGet();
+    for(int y = from; y <= to; ++y) {
+      rowRequests.set(y, stamp);
+    }
+    final int band = RenderScheduler.bandSize(to - from + 1);
+    for(int y = from; y <= to; y += band) {
+      final int start = y;
+      final int end = Math.min(y + band - 1, to);
+      RenderScheduler.execute(new Runnable() {
+
+        @Override
+        public void run() {
+          boolean chg = false;
+          for(int row = start; row <= end; ++row) {
+            if(rowRequests.get(row) != stamp) {
+              continue;
+            }
+            updateLine(row);
+            chg = true;
+          }
+          if(chg) {
+            repaintRows(c, start, end);
+          }
+        }
+
+      });
+    }
   }
 
-  public void setRenderMode(final RenderMode renderMode, final JComponent c) {
-    this.renderMode = renderMode;
-    update(c);
+  private static void repaintRows(final JComponent c, final int lower,
+      final int upper) {
+    if(c instanceof Canvas) {
+      ((Canvas) c).repaintRows(lower, upper);
+    } else {
+      c.repaint();
+    }
   }
 
-  public RenderMode getRenderMode() {
-    return renderMode;
+  /**
+   * Computes the area of the output that depends on the given area of the
+   * input. Each input pixel is drawn at most the maximal disparity plus the
+   * blur away from its column.
+   * 
+   * @param rect The input area.
+   * @return The output area.
+   */
+  public Rectangle getAffected(final Rectangle rect) {
+    final int shift = getMaxShift();
+    final Rectangle res = new Rectangle(rect.x - shift, rect.y, rect.width + 2
+        * shift, rect.height);
+    return res.intersection(new Rectangle(0, 0, width, height));
   }
 
-  private RenderMode renderMode = RenderMode.SORTED_BLUR_LOG;
+  /**
+   * Getter.
+   * 
+   * @return The maximal horizontal distance between an input pixel and the
+   *         output pixels it affects.
+   */
+  public int getMaxShift() {
+    return transfer.maxShift;
+  }
 
-  protected double factor = 12.75 / MAX_COLOR;
+  public void updateLine(final int y) {
+    if(!inRangeY(y)) {
+      return;
+    }
+    final long t = Metrics.get().start();
+    renderWindow(y, 0, width - 1);
+    Metrics.get().rows(t, 1);
+    changed(0, y, width, 1);
+  }
 
-  private void drawPixel(final double[] pixel,
-      final double depth, final int x, final int y, final double[] redDepth,
-      final double[] cyanDepth) {
-    final int dist = (int) (depth * factor);
-    final int b = renderMode.blur;
-    for(int dx = 0; dx <= b; ++dx) {
-      final double f = parts(dx, b);
-      drawRed(pixel, x - dist - dx, y, f, redDepth, depth);
-      drawCyan(pixel, x + dist - dx, y, f, cyanDepth, depth);
-      if(dx != 0) {
-        drawRed(pixel, x - dist + dx, y, f, redDepth, depth);
-        drawCyan(pixel, x + dist + dx, y, f, cyanDepth, depth);
+  /**
+   * Renders a window of a line and publishes it. The line is rendered into a
+   * scratch line first. It is only copied to the output when no depth edit
+   * has bumped the version of its band meanwhile, otherwise it is rendered
+   * again. Since the depth raster is written before the version is bumped a
+   * published line never shows older depth values than an edit that is
+   * already published. Edits never wait for renders.
+   *
+   * @param y The line.
+   * @param from The first output column.
+   * @param to The last output column inclusive.
+   */
+  private void renderWindow(final int y, final int from, final int to) {
+    final int lo = Math.max(from, 0);
+    final int hi = Math.min(to, width - 1);
+    if(lo > hi) {
+      return;
+    }
+    final int band = y / BAND;
+    final LineRenderer r = renderer();
+    final int[] line = r.getLine();
+    final byte[] depth = r.getDepthLine();
+    final int off = y * width;
+    for(;;) {
+      final int version = bandVersions.get(band);
+      final Transfer tr = transfer;
+      loadDepth(y, Math.max(lo - tr.maxShift, 0), Math.min(hi + tr.maxShift,
+          width - 1), depth);
+      r.render(src, off, depth, 0, line, 0, lo, hi, tr);
+      synchronized(publishLocks[band % STRIPES]) {
+        if(bandVersions.get(band) == version) {
+          System.arraycopy(line, lo, dst, off + lo, hi - lo + 1);
+          return;
+        }
       }
     }
   }
 
-  private static double parts(final double d, final double max) {
-    return max > 0 ? 1.0 - d / max : 1.0;
+  /**
+   * Re-renders only the output columns that depend on the changed depth
+   * values. The result is the same as rendering the whole line.
+   */
+  @Override
+  public void depthChanged(final int y, final int from, final int to) {
+    if(!inRangeY(y)) {
+      return;
+    }
+    final int lo = Math.max(from, 0);
+    final int hi = Math.min(to, width - 1);
+    if(lo > hi) {
+      return;
+    }
+    final Rectangle line = new Rectangle(lo, y, hi - lo + 1, 1);
+    setupChanged(line);
+    final Filtered f = filtered;
+    if(f != null) {
+      f.read(y, lo, hi);
+      refilter(f, line);
+      return;
+    }
+    final long t = Metrics.get().start();
+    final int shift = transfer.maxShift;
+    // renders that read the old depth values must not publish
+    bandVersions.incrementAndGet(y / BAND);
+    renderWindow(y, lo - shift, hi + shift);
+    Metrics.get().rows(t, 1);
+    changed(lo - shift, y, hi - lo + 1 + 2 * shift, 1);
   }
 
-  private void drawRed(final double[] pixel, final int x, final int y,
-      final double f, final double[] redDepth, final double depth) {
-    if(!inRangeX(x)) {
+  /**
+   * Is called when depth values of several lines have changed at once, like
+   * by a brush stroke. With a depth filter the surroundings of all changes
+   * are filtered and rendered once instead of once per line.
+   *
+   * @param minY The first changed line.
+   * @param maxY The last changed line inclusive.
+   * @param from The first changed column of every line.
+   * @param to The last changed column inclusive of every line. Lines where it
+   *          is less than the first changed column have not changed.
+   */
+  public void depthChanged(final int minY, final int maxY, final int[] from,
+      final int[] to) {
+    final int y0 = Math.max(minY, 0);
+    final int y1 = Math.min(maxY, height - 1);
+    Rectangle area = null;
+    for(int y = y0; y <= y1; ++y) {
+      final int lo = Math.max(from[y], 0);
+      final int hi = Math.min(to[y], width - 1);
+      if(lo > hi) {
+        continue;
+      }
+      final Rectangle line = new Rectangle(lo, y, hi - lo + 1, 1);
+      if(area == null) {
+        area = line;
+      } else {
+        area.add(line);
+      }
+    }
+    if(area == null) {
       return;
     }
-    if(renderMode.depthMem && -depth > redDepth[x]) {
+    setupChanged(area);
+    final Filtered f = filtered;
+    if(f == null) {
+      for(int y = y0; y <= y1; ++y) {
+        depthChanged(y, from[y], to[y]);
+      }
       return;
     }
-    prod.leftEye(x, y, pixel, f);
-    redDepth[x] = -depth;
+    for(int y = y0; y <= y1; ++y) {
+      final int lo = Math.max(from[y], 0);
+      final int hi = Math.min(to[y], width - 1);
+      if(lo <= hi) {
+        f.read(y, lo, hi);
+      }
+    }
+    refilter(f, area);
   }
 
-  @Override
-  public void leftEye(final int x, final int y, final double[] pixel,
-      final double f) {
-    final double[] old = getPixel(x, y);
-    old[0] = clampColor(combine(old[0], pixel[0], f));
-    setPixel(x, y, old);
+  /**
+   * Remembers changed depth values while a depth filter is set up, since
+   * the filter may have read them before they changed. Must be called before
+   * the current filter is looked up.
+   */
+  private void setupChanged(final Rectangle changed) {
+    synchronized(setupLock) {
+      if(!settingUp) {
+        return;
+      }
+      if(setupChanges == null) {
+        setupChanges = new Rectangle(changed);
+      } else {
+        setupChanges.add(changed);
+      }
+    }
+  }
+
+  /**
+   * Filters and renders the surroundings of changed raw depth values.
+   */
+  private void refilter(final Filtered f, final Rectangle changed) {
+    final long t = Metrics.get().start();
+    final int shift = transfer.maxShift;
+    final Rectangle area = f.refilter(changed);
+    final int end = area.y + area.height;
+    for(int b = area.y / BAND; b <= (end - 1) / BAND; ++b) {
+      bandVersions.incrementAndGet(b);
+    }
+    for(int row = area.y; row < end; ++row) {
+      renderWindow(row, area.x - shift, area.x + area.width - 1 + shift);
+    }
+    Metrics.get().rows(t, area.height);
+    changed(area.x - shift, area.y, area.width + 2 * shift, area.height);
+  }
+
+  /**
+   * The filtered depth values and the raw depth values they are computed
+   * from.
+   */
+  private final class Filtered {
+
+    final DepthFilter filter;
+
+    final byte[] raw;
+
+    final byte[] plane;
+
+    Filtered(final DepthFilter filter) throws InterruptedException {
+      this.filter = filter;
+      raw = new byte[width * height];
+      packDepth(depthRaster, raw);
+      plane = new byte[raw.length];
+      filter.apply(raw, plane, width, height);
+    }
+
+    /**
+     * Reads changed raw depth values.
+     *
+     * @param y The changed line.
+     * @param from The first changed column.
+     * @param to The last changed column inclusive.
+     */
+    synchronized void read(final int y, final int from, final int to) {
+      final int[] line = depthRaster.getSamples(from, y, to - from + 1, 1, 0,
+          (int[]) null);
+      final int off = y * width + from;
+      for(int i = 0; i < line.length; ++i) {
+        raw[off + i] = (byte) channel(line[i]);
+      }
+    }
+
+    /**
+     * Filters everything that read raw values affect. Every change refilters
+     * its whole surroundings after reading, so the last change around a pixel
+     * leaves it up to date regardless of the order of the changes.
+     *
+     * @param changed The area of the read values.
+     * @return The refiltered area.
+     */
+    synchronized Rectangle refilter(final Rectangle changed) {
+      final int r = filter.getRadius();
+      final Rectangle area = new Rectangle(changed.x - r, changed.y - r,
+          changed.width + 2 * r, changed.height + 2 * r).intersection(
+          new Rectangle(0, 0, width, height));
+      filter.filter(raw, plane, width, height, area);
+      return area;
+    }
+
   }
 
-  private void drawCyan(final double[] pixel, final int x, final int y,
-      final double f, final double[] cyanDepth, final double depth) {
-    if(!inRangeX(x)) {
+  /**
+   * Sets the filter that smooths the depth map before rendering, without
+   * rendering. The whole depth map is filtered now and the result is kept
+   * until the depth map changes, when only the surroundings of the changed
+   * values are filtered again. Depth values that change while the depth map
+   * is filtered are read and filtered again afterwards, so edits may go on
+   * meanwhile. Only their surroundings are rendered.
+   *
+   * @param filter The filter or <code>null</code> to render the raw depth
+   *          map.
+   * @throws InterruptedException When interrupted while filtering.
+   */
+  public synchronized void setDepthFilter(final DepthFilter filter)
+      throws InterruptedException {
+    if(filter == null) {
+      filtered = null;
       return;
     }
-    if(renderMode.depthMem && -depth > cyanDepth[x]) {
+    synchronized(setupLock) {
+      settingUp = true;
+      setupChanges = null;
+    }
+    final Filtered f;
+    try {
+      f = new Filtered(filter);
+    } catch(final InterruptedException e) {
+      synchronized(setupLock) {
+        settingUp = false;
+      }
+      throw e;
+    }
+    filtered = f;
+    final Rectangle changed;
+    synchronized(setupLock) {
+      settingUp = false;
+      changed = setupChanges;
+      setupChanges = null;
+    }
+    if(changed == null) {
       return;
     }
-    prod.rightEye(x, y, pixel, f);
-    cyanDepth[x] = -depth;
+    for(int y = changed.y; y < changed.y + changed.height; ++y) {
+      f.read(y, changed.x, changed.x + changed.width - 1);
+    }
+    refilter(f, changed);
+  }
+
+  /**
+   * Getter.
+   *
+   * @return The depth filter or <code>null</code>.
+   */
+  public DepthFilter getDepthFilter() {
+    final Filtered f = filtered;
+    return f != null ? f.filter : null;
+  }
+
+  private LineRenderer renderer() {
+    final LineRenderer r = renderers.get();
+    r.setRuns(runKernel);
+    return r;
+  }
+
+  /**
+   * Setter.
+   * 
+   * @param runKernel Whether lines are drawn in runs of adjacent columns with
+   *          the same depth instead of pixel by pixel. Both produce the same
+   *          result.
+   */
+  public void setRunKernel(final boolean runKernel) {
+    this.runKernel = runKernel;
+  }
+
+  public boolean isRunKernel() {
+    return runKernel;
+  }
+
+  public synchronized void setFactor(final double factor) {
+    this.factor = factor / MAX_COLOR;
+    transfer = new Transfer(renderMode, this.factor, curve);
+  }
+
+  public double getFactor() {
+    return factor * MAX_COLOR;
+  }
+
+  public void setRenderMode(final RenderMode renderMode, final JComponent c) {
+    setRenderMode(renderMode);
+    update(c);
+  }
+
+  /**
+   * Sets the render mode without rendering.
+   * 
+   * @param renderMode The render mode.
+   */
+  public synchronized void setRenderMode(final RenderMode renderMode) {
+    this.renderMode = renderMode;
+    transfer = new Transfer(renderMode, factor, curve);
+  }
+
+  public RenderMode getRenderMode() {
+    return renderMode;
   }
 
+  /**
+   * Sets the mapping of raw depth values without rendering.
+   * 
+   * @param curve The depth curve or <code>null</code> to use the mapping of
+   *          the render mode.
+   */
+  public synchronized void setDepthCurve(final DepthCurve curve) {
+    this.curve = curve;
+    transfer = new Transfer(renderMode, factor, curve);
+  }
+
+  public DepthCurve getDepthCurve() {
+    return curve;
+  }
+
+  private RenderMode renderMode = RenderMode.SORTED_BLUR_LOG;
+
+  protected double factor = 12.75 / MAX_COLOR;
+
+  private DepthCurve curve;
+
+  /** The filtered depth map or <code>null</code> when not filtered. */
+  private volatile Filtered filtered;
+
+  private final Object setupLock = new Object();
+
+  /** Whether a depth filter is being set up. Guarded by the setup lock. */
+  private boolean settingUp;
+
+  /**
+   * The depth values changed while setting up a depth filter or
+   * <code>null</code>. Guarded by the setup lock.
+   */
+  private Rectangle setupChanges;
+
+  /** The tables of the current settings. Replaced as a whole on change. */
+  private volatile Transfer transfer = new Transfer(renderMode, factor, null);
+
   @Override
-  public void rightEye(final int x, final int y, final double[] pixel,
+  public void leftEye(final int x, final int y, final double[] pixel,
       final double f) {
-    final double[] old = getPixel(x, y);
-    old[1] = clampColor(combine(old[1], pixel[1], f));
-    old[2] = clampColor(combine(old[2], pixel[2], f));
-    setPixel(x, y, old);
+    if(!inRangeX(x) || !inRangeY(y)) {
+      return;
+    }
+    final int i = y * width + x;
+    dst[i] = LineRenderer.blendRed(dst[i], pixel[0], f);
+    changed(x, y, 1, 1);
   }
 
-  private static double combine(final double orig, final double next,
+  @Override
+  public void rightEye(final int x, final int y, final double[] pixel,
       final double f) {
-    return (1 - f) * orig + f * next;
-    // return Math.max(orig, f * next);
+    if(!inRangeX(x) || !inRangeY(y)) {
+      return;
+    }
+    final int i = y * width + x;
+    dst[i] = LineRenderer.blendCyan(dst[i], pixel[1], pixel[2], f);
+    changed(x, y, 1, 1);
   }
 
 }
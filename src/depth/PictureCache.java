@@ -0,0 +1,615 @@
+package depth;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import depth.Picture3D.RenderMode;
+
+/**
+ * Caches the decoded and rendered pictures of a folder for navigation. The
+ * folder is listed once and only listed again when its modification time
+ * changes. The picture to show is only decoded, on a thread of its own, and
+ * left to be rendered where it is shown. The neighbours of the current picture
+ * are decoded and rendered on a background thread. Pictures are held in a
+ * least recently used map bounded by their estimated memory usage. Pictures
+ * still loading count with the size read from the image header, and the
+ * current picture and its neighbours are never evicted.
+ */
+public final class PictureCache {
+
+  /** The default memory budget in bytes. */
+  public static final long BUDGET = 256L << 20;
+
+  /**
+   * A decoded image with its depth map and rendered anaglyph.
+   */
+  public static final class Entry {
+
+    /** The image. */
+    public final Picture img;
+
+    /** The depth map. */
+    public final Picture depth;
+
+    /** The anaglyph. */
+    public final Picture3D pic;
+
+    /** The estimated memory usage in bytes. */
+    final long bytes;
+
+    /** Whether the anaglyph is rendered or only decoded. */
+    volatile boolean rendered;
+
+    Entry(final Picture img, final Picture depth, final Picture3D pic,
+        final boolean rendered) {
+      this.img = img;
+      this.depth = depth;
+      this.pic = pic;
+      this.rendered = rendered;
+      bytes = bytes(img.getWidth(), img.getHeight());
+    }
+
+    /**
+     * Getter.
+     *
+     * @return Whether the anaglyph is rendered or only decoded.
+     */
+    public boolean isRendered() {
+      return rendered;
+    }
+
+    static long bytes(final int width, final int height) {
+      // image, depth map, and source, depth, and output planes
+      return (long) width * height * (4 + 1 + 4 + 1 + 4);
+    }
+
+  }
+
+  /**
+   * Receives the pictures opened with {@link PictureCache#open}. It is called
+   * on the thread that loaded the picture.
+   */
+  public interface Receiver {
+
+    /**
+     * Is called when a picture is loaded.
+     *
+     * @param file The image.
+     * @param entry The picture. It is only rendered when
+     *          {@link Entry#isRendered()} says so.
+     */
+    void opened(File file, Entry entry);
+
+    /**
+     * Is called when a picture cannot be loaded.
+     *
+     * @param file The image.
+     * @param e The reason.
+     */
+    void failed(File file, IOException e);
+
+  }
+
+  /**
+   * The loading of a picture. The cache is trimmed when it completes since
+   * the picture may be larger than estimated.
+   */
+  private final class Load extends FutureTask<Entry> {
+
+    final File file;
+
+    /** The estimated memory usage in bytes. */
+    final long estimate;
+
+    /** Waits for the picture to be shown. Guarded by the cache. */
+    Receiver receiver;
+
+    Load(final File file, final Callable<Entry> load, final long estimate) {
+      super(load);
+      this.file = file;
+      this.estimate = estimate;
+    }
+
+    @Override
+    protected void done() {
+      final Receiver r;
+      synchronized(PictureCache.this) {
+        trim(null);
+        r = receiver;
+        receiver = null;
+      }
+      if(r != null) {
+        deliver(this, r);
+      }
+    }
+
+  }
+
+  private final File folder;
+
+  private final long budget;
+
+  private final ExecutorService loader = executor("prefetch");
+
+  /** Decodes the pictures to show so they never wait for prefetches. */
+  private final ExecutorService opener = executor("open");
+
+  /** The image opened last. Images opened before are not decoded anymore. */
+  private volatile File opening;
+
+  private final LinkedHashMap<File, Load> entries =
+      new LinkedHashMap<File, Load>(16, 0.75f, true);
+
+  /** The current picture and its neighbours, which are never evicted. */
+  private File[] current = new File[0];
+
+  private File[] files;
+
+  private long modified = -1;
+
+  private volatile RenderMode mode = RenderMode.SORTED_BLUR_LOG;
+
+  private volatile DepthFilter filter;
+
+  private volatile RenderCache renders;
+
+  /**
+   * Creates a cache.
+   *
+   * @param folder The folder.
+   * @param budget The memory budget in bytes.
+   */
+  public PictureCache(final File folder, final long budget) {
+    this.folder = folder;
+    this.budget = budget;
+  }
+
+  private static ExecutorService executor(final String name) {
+    return Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+      @Override
+      public Thread newThread(final Runnable r) {
+        final Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+      }
+
+    });
+  }
+
+  /**
+   * Getter.
+   *
+   * @return The folder.
+   */
+  public File getFolder() {
+    return folder;
+  }
+
+  /**
+   * Setter.
+   *
+   * @param mode The render mode of pictures loaded from now on.
+   */
+  public void setRenderMode(final RenderMode mode) {
+    this.mode = mode;
+  }
+
+  /**
+   * Setter.
+   *
+   * @param filter The depth filter of pictures loaded from now on or
+   *          <code>null</code>.
+   */
+  public void setDepthFilter(final DepthFilter filter) {
+    this.filter = filter;
+  }
+
+  /**
+   * Setter.
+   *
+   * @param renders The disk cache consulted before rendering or
+   *          <code>null</code>.
+   */
+  public void setRenderCache(final RenderCache renders) {
+    this.renders = renders;
+  }
+
+  /**
+   * Getter.
+   *
+   * @return The images of the folder sorted by name. The folder is only
+   *         listed again when it has changed.
+   */
+  public synchronized File[] getFiles() {
+    final long m = folder.lastModified();
+    if(files == null || m != modified) {
+      final File[] list = Depth.listImages(folder.getPath());
+      files = list != null ? list : new File[0];
+      Arrays.sort(files);
+      modified = m;
+      // forget images that are gone
+      final Iterator<File> it = entries.keySet().iterator();
+      while(it.hasNext()) {
+        if(Arrays.binarySearch(files, it.next()) < 0) {
+          it.remove();
+        }
+      }
+    }
+    return files;
+  }
+
+  /**
+   * Finds a neighbour of an image.
+   *
+   * @param file The image.
+   * @param dir The direction, <code>1</code> for the next and <code>-1</code>
+   *          for the previous image.
+   * @return The neighbour wrapping around at the ends or <code>null</code>
+   *         when the folder contains no images.
+   */
+  public File neighbour(final File file, final int dir) {
+    final File[] fs = getFiles();
+    if(fs.length == 0) {
+      return null;
+    }
+    final int i = Arrays.binarySearch(fs, file);
+    if(i < 0) {
+      // the image is gone so use where it would be
+      final int ins = -i - 1;
+      return fs[((dir > 0 ? ins : ins - 1) % fs.length + fs.length)
+          % fs.length];
+    }
+    return fs[((i + dir) % fs.length + fs.length) % fs.length];
+  }
+
+  /**
+   * Getter.
+   *
+   * @param file The image.
+   * @return The decoded and rendered picture. Waits when it is still being
+   *         loaded.
+   * @throws IOException When the picture cannot be loaded.
+   */
+  public Entry get(final File file) throws IOException {
+    final Future<Entry> f = submit(file);
+    try {
+      return f.get();
+    } catch(final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("interrupted loading " + file);
+    } catch(final ExecutionException e) {
+      remove(file, f);
+      final Throwable c = e.getCause();
+      if(c instanceof IOException) {
+        throw (IOException) c;
+      }
+      if(c instanceof RuntimeException) {
+        throw (RuntimeException) c;
+      }
+      throw new IOException(c);
+    }
+  }
+
+  /**
+   * Opens an image to show it and starts loading its neighbours afterwards.
+   * A loaded or prefetched picture is passed on as it is. Otherwise the
+   * picture is only decoded, ahead of any prefetch, and left to the receiver
+   * to render. Images opened meanwhile take over, so paging quickly only
+   * decodes the image opened last. Never waits.
+   *
+   * @param file The image.
+   * @param receiver Receives the picture unless another image has been
+   *          opened before it is decoded.
+   */
+  public void open(final File file, final Receiver receiver) {
+    opening = file;
+    opener.execute(new Runnable() {
+
+      @Override
+      public void run() {
+        if(opening != file) {
+          return;
+        }
+        Load f;
+        boolean waiting = false;
+        synchronized(PictureCache.this) {
+          f = entries.get(file);
+          if(f != null && !f.isDone()) {
+            if(f.cancel(false)) {
+              entries.remove(file);
+              f = null;
+            } else {
+              // the prefetch passes the picture on when it is done
+              f.receiver = receiver;
+              waiting = true;
+            }
+          }
+        }
+        if(!waiting) {
+          if(f == null) {
+            f = decode(file);
+          }
+          deliver(f, receiver);
+        }
+        if(opening == file) {
+          prefetch(file);
+        }
+      }
+
+    });
+  }
+
+  /**
+   * Decodes a picture in the calling thread and caches it.
+   */
+  private Load decode(final File file) {
+    final long estimate = estimate(file);
+    final Load f = new Load(file, new Callable<Entry>() {
+
+      @Override
+      public Entry call() throws IOException {
+        return PictureCache.decode(file, mode);
+      }
+
+    }, estimate);
+    synchronized(this) {
+      entries.put(file, f);
+      trim(file);
+    }
+    f.run();
+    return f;
+  }
+
+  private void deliver(final Load f, final Receiver receiver) {
+    try {
+      receiver.opened(f.file, f.get());
+    } catch(final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch(final ExecutionException e) {
+      remove(f.file, f);
+      final Throwable c = e.getCause();
+      receiver.failed(f.file, c instanceof IOException ? (IOException) c
+          : new IOException(c));
+    }
+  }
+
+  /**
+   * Starts loading the neighbours of an image in the background.
+   *
+   * @param file The image.
+   */
+  public void prefetch(final File file) {
+    final File next = neighbour(file, 1);
+    final File prev = neighbour(file, -1);
+    synchronized(this) {
+      current = new File[] { file, next, prev};
+    }
+    if(next != null) {
+      submit(next);
+    }
+    if(prev != null) {
+      submit(prev);
+    }
+  }
+
+  /**
+   * Replaces the cached picture of an image.
+   *
+   * @param file The image.
+   * @param entry The new picture.
+   */
+  public synchronized void put(final File file, final Entry entry) {
+    final Load f = new Load(file, new Callable<Entry>() {
+
+      @Override
+      public Entry call() {
+        return entry;
+      }
+
+    }, entry.bytes);
+    f.run();
+    entries.put(file, f);
+    trim(file);
+  }
+
+  private Future<Entry> submit(final File file) {
+    synchronized(this) {
+      final Load f = entries.get(file);
+      if(f != null) {
+        return f;
+      }
+    }
+    // reads the header outside of the lock
+    final long estimate = estimate(file);
+    synchronized(this) {
+      Load f = entries.get(file);
+      if(f == null) {
+        f = new Load(file, new Callable<Entry>() {
+
+          @Override
+          public Entry call() throws IOException {
+            return load(file, mode, filter, renders);
+          }
+
+        }, estimate);
+        entries.put(file, f);
+        trim(file);
+        loader.execute(f);
+      }
+      return f;
+    }
+  }
+
+  /**
+   * Estimates the memory usage of a picture from the size in the header of
+   * the image.
+   *
+   * @param file The image.
+   * @return The estimated memory usage in bytes or <code>0</code> when the
+   *         header cannot be read.
+   */
+  private static long estimate(final File file) {
+    try {
+      final ImageInputStream in = ImageIO.createImageInputStream(file);
+      if(in == null) {
+        return 0;
+      }
+      try {
+        final Iterator<ImageReader> it = ImageIO.getImageReaders(in);
+        if(!it.hasNext()) {
+          return 0;
+        }
+        final ImageReader r = it.next();
+        try {
+          r.setInput(in, true, true);
+          return Entry.bytes(r.getWidth(0), r.getHeight(0));
+        } finally {
+          r.dispose();
+        }
+      } finally {
+        in.close();
+      }
+    } catch(final IOException e) {
+      return 0;
+    }
+  }
+
+  private synchronized void remove(final File file, final Future<Entry> f) {
+    if(entries.get(file) == f) {
+      entries.remove(file);
+    }
+  }
+
+  /**
+   * Evicts the least recently used pictures until the pictures fit the
+   * budget. Pictures that are still loading count with their estimated size
+   * but cannot be evicted.
+   *
+   * @param keep An image that is never evicted or <code>null</code>.
+   */
+  private void trim(final File keep) {
+    long total = 0;
+    for(final Load f : entries.values()) {
+      total += bytes(f);
+    }
+    final Iterator<Map.Entry<File, Load>> it = entries.entrySet().iterator();
+    while(total > budget && it.hasNext()) {
+      final Map.Entry<File, Load> e = it.next();
+      if(e.getKey().equals(keep) || Arrays.asList(current).contains(e.getKey())
+          || !e.getValue().isDone()) {
+        continue;
+      }
+      total -= bytes(e.getValue());
+      it.remove();
+    }
+  }
+
+  private static long bytes(final Load f) {
+    if(!f.isDone()) {
+      return f.estimate;
+    }
+    try {
+      return f.get().bytes;
+    } catch(final Exception e) {
+      return 0;
+    }
+  }
+
+  /**
+   * Decodes a picture in the calling thread without rendering it. The depth
+   * map is opened from the raw file when it exists.
+   *
+   * @param file The image.
+   * @param mode The render mode.
+   * @return The picture.
+   * @throws IOException When the picture cannot be decoded.
+   */
+  public static Entry decode(final File file, final RenderMode mode)
+      throws IOException {
+    final Picture img = new Picture(read(file));
+    final File raw = Depth.getRawDepth(file);
+    final Picture depth;
+    if(raw.exists()) {
+      depth = MappedPicture.open(raw);
+    } else {
+      depth = new Picture(read(Depth.getDepth(file)));
+    }
+    final Picture3D pic = new Picture3D(img, depth);
+    pic.setRenderMode(mode);
+    return new Entry(img, depth, pic, false);
+  }
+
+  /**
+   * Decodes and renders a picture in the calling thread. Renders of filtered
+   * depth maps are not looked up in the disk cache nor stored there. Other
+   * renders are stored in the background.
+   *
+   * @param file The image.
+   * @param mode The render mode.
+   * @param filter The depth filter or <code>null</code>.
+   * @param renders The disk cache consulted before rendering or
+   *          <code>null</code>.
+   * @return The picture.
+   * @throws IOException When the picture cannot be decoded.
+   */
+  public static Entry load(final File file, final RenderMode mode,
+      final DepthFilter filter, final RenderCache renders)
+      throws IOException {
+    final Entry e = decode(file, mode);
+    final Picture3D pic = e.pic;
+    if(filter != null) {
+      try {
+        pic.setDepthFilter(filter);
+      } catch(final InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("interrupted filtering " + file);
+      }
+    }
+    if(renders == null || filter != null) {
+      pic.render();
+      e.rendered = true;
+      return e;
+    }
+    final File raw = Depth.getRawDepth(file);
+    final File depthFile = raw.exists() ? raw : Depth.getDepth(file);
+    final String key = RenderCache.key(file, depthFile, mode, pic.getFactor());
+    final BufferedImage res = renders.get(key);
+    if(res != null) {
+      pic.setRendered(res);
+    } else {
+      pic.render();
+      renders.putLater(key, pic.getImage());
+    }
+    e.rendered = true;
+    return e;
+  }
+
+  private static BufferedImage read(final File f)
+      throws IOException {
+    final BufferedImage i = ImageIO.read(f);
+    Metrics.get().decoded(f.length());
+    if(i == null) {
+      throw new IOException("cannot decode " + f);
+    }
+    return i;
+  }
+
+}
@@ -0,0 +1,144 @@
+package depth;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes an rgb PNG line by line so that the image never has to be held in
+ * memory as a whole.
+ */
+final class PngWriter {
+
+  private static final byte[] SIGNATURE = { (byte) 137, 80, 78, 71, 13, 10, 26,
+      10};
+
+  private static final int CHUNK = 1 << 16;
+
+  /**
+   * Splits the compressed stream into IDAT chunks.
+   */
+  private final class Chunks extends OutputStream {
+
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(
+        CHUNK);
+
+    @Override
+    public void write(final int b) throws IOException {
+      buffer.write(b);
+      if(buffer.size() >= CHUNK) {
+        flush();
+      }
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len)
+        throws IOException {
+      buffer.write(b, off, len);
+      if(buffer.size() >= CHUNK) {
+        flush();
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      if(buffer.size() > 0) {
+        chunk("IDAT", buffer.toByteArray());
+        buffer.reset();
+      }
+    }
+
+  }
+
+  private final DataOutputStream out;
+
+  private final int width;
+
+  private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+
+  private final Chunks chunks = new Chunks();
+
+  private final DeflaterOutputStream data;
+
+  private final byte[] line;
+
+  /**
+   * Writes the header of the image.
+   * 
+   * @param out The stream to write to.
+   * @param width The width of the image.
+   * @param height The height of the image.
+   * @throws IOException I/O Exception.
+   */
+  public PngWriter(final OutputStream out, final int width, final int height)
+      throws IOException {
+    this.out = new DataOutputStream(out);
+    this.width = width;
+    line = new byte[1 + 3 * width];
+    data = new DeflaterOutputStream(chunks, deflater, CHUNK);
+    this.out.write(SIGNATURE);
+    final ByteArrayOutputStream header = new ByteArrayOutputStream();
+    final DataOutputStream h = new DataOutputStream(header);
+    h.writeInt(width);
+    h.writeInt(height);
+    h.writeByte(8); // bit depth
+    h.writeByte(2); // rgb
+    h.writeByte(0); // deflate
+    h.writeByte(0); // adaptive filtering
+    h.writeByte(0); // no interlace
+    chunk("IHDR", header.toByteArray());
+  }
+
+  /**
+   * Writes lines of packed rgb pixels.
+   * 
+   * @param pixels The pixels.
+   * @param off The offset of the first line.
+   * @param lines The number of lines.
+   * @throws IOException I/O Exception.
+   */
+  public void writeLines(final int[] pixels, final int off, final int lines)
+      throws IOException {
+    for(int y = 0; y < lines; ++y) {
+      final int o = off + y * width;
+      int p = 1;
+      for(int x = 0; x < width; ++x) {
+        final int rgb = pixels[o + x];
+        line[p++] = (byte) (rgb >> 16);
+        line[p++] = (byte) (rgb >> 8);
+        line[p++] = (byte) rgb;
+      }
+      data.write(line);
+    }
+  }
+
+  /**
+   * Finishes the image. The underlying stream is not closed.
+   * 
+   * @throws IOException I/O Exception.
+   */
+  public void finish() throws IOException {
+    data.finish();
+    chunks.flush();
+    deflater.end();
+    chunk("IEND", new byte[0]);
+    out.flush();
+  }
+
+  private void chunk(final String type, final byte[] content)
+      throws IOException {
+    final byte[] t = type.getBytes("US-ASCII");
+    final CRC32 crc = new CRC32();
+    crc.update(t);
+    crc.update(content);
+    out.writeInt(content.length);
+    out.write(t);
+    out.write(content);
+    out.writeInt((int) crc.getValue());
+  }
+
+}
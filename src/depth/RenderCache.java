@@ -0,0 +1,306 @@
+package depth;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.imageio.ImageIO;
+
+import depth.Picture3D.RenderMode;
+
+/**
+ * Stores rendered anaglyphs on disk. The key is a hash of the bytes of the
+ * image and depth map files together with the render settings and the
+ * version of the renderers, so an entry is found again exactly when nothing
+ * that affects the result has changed. Filtered depth maps are not cached. The
+ * anaglyphs are stored as PNG files. The modification time of a file serves as
+ * its last access time and the least recently used files are deleted when the
+ * cache grows beyond its size.
+ */
+public final class RenderCache {
+
+  /** The default folder of the cache. */
+  public static final File DIR = new File(System.getProperty("user.home"),
+      ".depth-cache");
+
+  /** The default size of the cache in bytes. */
+  public static final long SIZE = 512L << 20;
+
+  /**
+   * The version of the renderers. It must be increased whenever the output of
+   * the renderers changes, so older anaglyphs are not found anymore.
+   */
+  public static final int VERSION = 2;
+
+  private static final String EXT = "." + BatchRender.FORMAT;
+
+  /** Writes the anaglyphs stored in the background. */
+  private static final ExecutorService WRITER = Executors
+      .newSingleThreadExecutor(new ThreadFactory() {
+
+        @Override
+        public Thread newThread(final Runnable r) {
+          final Thread t = new Thread(r, "render cache");
+          t.setDaemon(true);
+          return t;
+        }
+
+      });
+
+  private final File dir;
+
+  private final long size;
+
+  /**
+   * Creates a cache.
+   *
+   * @param dir The folder of the cache. It is created when the first
+   *          anaglyph is stored.
+   * @param size The maximal size of the cache in bytes.
+   */
+  public RenderCache(final File dir, final long size) {
+    this.dir = dir;
+    this.size = size;
+  }
+
+  /**
+   * Computes the key of a render.
+   *
+   * @param img The image file.
+   * @param depth The depth map file.
+   * @param mode The render mode.
+   * @param factor The disparity factor as in
+   *          {@link Picture3D#setFactor(double)}.
+   * @return The key.
+   * @throws IOException When a file cannot be read.
+   */
+  public static String key(final File img, final File depth,
+      final RenderMode mode, final double factor) throws IOException {
+    final MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("SHA-1");
+    } catch(final NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    md.update((byte) VERSION);
+    final byte[] buff = new byte[64 * 1024];
+    for(final File f : new File[] { img, depth}) {
+      final InputStream in = new FileInputStream(f);
+      try {
+        int len;
+        while((len = in.read(buff)) >= 0) {
+          md.update(buff, 0, len);
+        }
+      } finally {
+        in.close();
+      }
+      // separates the files
+      md.update((byte) 0);
+    }
+    md.update(mode.name().getBytes("UTF-8"));
+    final long bits = Double.doubleToLongBits(factor);
+    for(int i = 0; i < 8; ++i) {
+      md.update((byte) (bits >>> (i * 8)));
+    }
+    final StringBuilder sb = new StringBuilder();
+    for(final byte b : md.digest()) {
+      sb.append(Character.forDigit(b >> 4 & 0xf, 16));
+      sb.append(Character.forDigit(b & 0xf, 16));
+    }
+    return sb.toString();
+  }
+
+  private File file(final String key) {
+    return new File(dir, key + EXT);
+  }
+
+  /**
+   * Looks up an anaglyph.
+   *
+   * @param key The key.
+   * @return The anaglyph or <code>null</code> when it is not cached.
+   */
+  public BufferedImage get(final String key) {
+    final File f = file(key);
+    if(!f.exists()) {
+      return null;
+    }
+    try {
+      final BufferedImage res = ImageIO.read(f);
+      if(res != null) {
+        f.setLastModified(System.currentTimeMillis());
+      }
+      return res;
+    } catch(final IOException e) {
+      f.delete();
+      return null;
+    }
+  }
+
+  /**
+   * Copies a cached anaglyph to a file.
+   *
+   * @param key The key.
+   * @param to The destination.
+   * @return Whether the anaglyph was cached.
+   * @throws IOException When the file cannot be written.
+   */
+  public boolean copy(final String key, final File to) throws IOException {
+    final File f = file(key);
+    if(!f.exists()) {
+      return false;
+    }
+    try {
+      copyFile(f, to);
+    } catch(final IOException e) {
+      if(f.exists()) {
+        throw e;
+      }
+      // evicted meanwhile
+      return false;
+    }
+    f.setLastModified(System.currentTimeMillis());
+    return true;
+  }
+
+  /**
+   * Stores an anaglyph.
+   *
+   * @param key The key.
+   * @param res The anaglyph.
+   * @throws IOException When the anaglyph cannot be written.
+   */
+  public void put(final String key, final BufferedImage res)
+      throws IOException {
+    dir.mkdirs();
+    final File tmp = File.createTempFile(key, ".tmp", dir);
+    try {
+      ImageIO.write(res, BatchRender.FORMAT, tmp);
+      publish(tmp, key);
+    } finally {
+      tmp.delete();
+    }
+  }
+
+  /**
+   * Stores an anaglyph in the background. The anaglyph is copied first, so
+   * it may change meanwhile.
+   *
+   * @param key The key.
+   * @param res The anaglyph.
+   */
+  public void putLater(final String key, final BufferedImage res) {
+    final BufferedImage copy = new BufferedImage(res.getColorModel(), res
+        .copyData(null), res.isAlphaPremultiplied(), null);
+    WRITER.execute(new Runnable() {
+
+      @Override
+      public void run() {
+        try {
+          put(key, copy);
+        } catch(final IOException e) {
+          System.err.println("not cached: " + e.getMessage());
+        }
+      }
+
+    });
+  }
+
+  /**
+   * Stores an anaglyph that is already written to a file.
+   *
+   * @param key The key.
+   * @param res The file containing the anaglyph in the cache format.
+   * @throws IOException When the file cannot be copied.
+   */
+  public void put(final String key, final File res) throws IOException {
+    dir.mkdirs();
+    final File tmp = File.createTempFile(key, ".tmp", dir);
+    try {
+      copyFile(res, tmp);
+      publish(tmp, key);
+    } finally {
+      tmp.delete();
+    }
+  }
+
+  private void publish(final File tmp, final String key) {
+    final File f = file(key);
+    if(!tmp.renameTo(f) && !f.exists()) {
+      return;
+    }
+    trim();
+  }
+
+  /**
+   * Deletes the least recently used anaglyphs until the cache fits its size.
+   */
+  private synchronized void trim() {
+    final File[] files = dir.listFiles();
+    if(files == null) {
+      return;
+    }
+    long total = 0;
+    for(final File f : files) {
+      total += f.length();
+    }
+    if(total <= size) {
+      return;
+    }
+    final long[] times = new long[files.length];
+    final Integer[] order = new Integer[files.length];
+    for(int i = 0; i < files.length; ++i) {
+      times[i] = files[i].lastModified();
+      order[i] = i;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+
+      @Override
+      public int compare(final Integer a, final Integer b) {
+        return times[a] < times[b] ? -1 : (times[a] > times[b] ? 1 : 0);
+      }
+
+    });
+    for(int i = 0; i < order.length && total > size; ++i) {
+      final File f = files[order[i]];
+      if(!f.getName().endsWith(EXT)) {
+        continue;
+      }
+      final long len = f.length();
+      if(f.delete()) {
+        total -= len;
+      }
+    }
+  }
+
+  private static void copyFile(final File from, final File to)
+      throws IOException {
+    final InputStream in = new FileInputStream(from);
+    try {
+      final OutputStream out = new FileOutputStream(to);
+      try {
+        final byte[] buff = new byte[64 * 1024];
+        int len;
+        while((len = in.read(buff)) >= 0) {
+          out.write(buff, 0, len);
+        }
+      } finally {
+        out.close();
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+}
@@ -0,0 +1,74 @@
+package depth;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The long lived thread pool all renderings are scheduled on. The pool has
+ * one daemon thread per core so rendering never competes with itself for the
+ * processors.
+ */
+public final class RenderScheduler {
+
+  private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+  private static final ThreadPoolExecutor POOL = new ThreadPoolExecutor(THREADS,
+      THREADS, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+      new ThreadFactory() {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable r) {
+          final Thread t = new Thread(r, "render-" + count.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        }
+
+      });
+
+  private RenderScheduler() {
+    // no constructor
+  }
+
+  /**
+   * Getter.
+   *
+   * @return The number of render threads.
+   */
+  public static int getThreads() {
+    return THREADS;
+  }
+
+  /**
+   * Computes the number of rows rendered by one task.
+   *
+   * @param rows The number of rows to render.
+   * @return The number of rows in a band.
+   */
+  public static int bandSize(final int rows) {
+    return Math.max(16, rows / (THREADS * 4));
+  }
+
+  /**
+   * Getter.
+   *
+   * @return The number of tasks waiting for a render thread.
+   */
+  public static int getQueueDepth() {
+    return POOL.getQueue().size();
+  }
+
+  /**
+   * Schedules a task.
+   *
+   * @param task The task.
+   */
+  public static void execute(final Runnable task) {
+    POOL.execute(task);
+  }
+
+}
@@ -0,0 +1,150 @@
+package depth;
+
+import java.awt.Rectangle;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import depth.Picture3D.RenderMode;
+
+/**
+ * Renders anaglyphs of images that do not fit into memory. Since every output
+ * line only depends on the same line of the input the image and its depth map
+ * are read in strips of lines, rendered, and written as PNG right away. The
+ * memory used is proportional to the width times the strip height.
+ * <p>
+ * Note that most image readers have to decode all lines above a source
+ * region, so higher strips trade memory for decoding time.
+ */
+public class StreamRender {
+
+  public static final int STRIP = 256;
+
+  private final Transfer transfer;
+
+  private final int strip;
+
+  /**
+   * Creates a renderer.
+   * 
+   * @param mode The render mode.
+   * @param factor The disparity factor as in
+   *          {@link Picture3D#setFactor(double)}.
+   * @param strip The number of lines read at once.
+   */
+  public StreamRender(final RenderMode mode, final double factor,
+      final int strip) {
+    transfer = new Transfer(mode, factor / Picture.MAX_COLOR, null);
+    this.strip = strip;
+  }
+
+  private static ImageReader reader(final File f) throws IOException {
+    final ImageInputStream in = ImageIO.createImageInputStream(f);
+    if(in == null) {
+      throw new IOException("cannot open " + f);
+    }
+    final Iterator<ImageReader> it = ImageIO.getImageReaders(in);
+    if(!it.hasNext()) {
+      in.close();
+      throw new IOException("no reader for " + f);
+    }
+    final ImageReader r = it.next();
+    r.setInput(in, true, true);
+    return r;
+  }
+
+  private static void dispose(final ImageReader r) throws IOException {
+    final Object in = r.getInput();
+    r.dispose();
+    if(in instanceof ImageInputStream) {
+      ((ImageInputStream) in).close();
+    }
+  }
+
+  /**
+   * Renders an image.
+   * 
+   * @param image The image.
+   * @param depth The depth map.
+   * @param out The PNG output.
+   * @throws IOException I/O Exception.
+   */
+  public void render(final File image, final File depth, final File out)
+      throws IOException {
+    final ImageReader img = reader(image);
+    try {
+      final ImageReader dep = reader(depth);
+      try {
+        final OutputStream os = new BufferedOutputStream(new FileOutputStream(
+            out));
+        try {
+          render(img, dep, os);
+          Metrics.get().decoded(image.length() + depth.length());
+        } finally {
+          os.close();
+        }
+      } finally {
+        dispose(dep);
+      }
+    } finally {
+      dispose(img);
+    }
+  }
+
+  private void render(final ImageReader img, final ImageReader dep,
+      final OutputStream out) throws IOException {
+    final int w = img.getWidth(0);
+    final int h = img.getHeight(0);
+    if(dep.getWidth(0) != w || dep.getHeight(0) != h) {
+      throw new IOException("depth map size does not match");
+    }
+    final int lines = Math.min(strip, h);
+    final int[] src = new int[w * lines];
+    final byte[] depth = new byte[w * lines];
+    final int[] dst = new int[w * lines];
+    final LineRenderer renderer = new LineRenderer(w);
+    final PngWriter png = new PngWriter(out, w, h);
+    final ImageReadParam ip = img.getDefaultReadParam();
+    final ImageReadParam dp = dep.getDefaultReadParam();
+    for(int y = 0; y < h; y += lines) {
+      final int n = Math.min(lines, h - y);
+      final Rectangle region = new Rectangle(0, y, w, n);
+      ip.setSourceRegion(region);
+      dp.setSourceRegion(region);
+      Picture3D.packPixels(img.read(0, ip).getRaster(), src);
+      Picture3D.packDepth(dep.read(0, dp).getRaster(), depth);
+      for(int i = 0; i < n; ++i) {
+        renderer.render(src, depth, dst, i * w, transfer);
+      }
+      png.writeLines(dst, 0, n);
+    }
+    png.finish();
+  }
+
+  public static final void main(final String[] args) throws IOException {
+    System.setProperty("java.awt.headless", "true");
+    if(args.length < 2) {
+      System.err.println("usage: <image> <output> "
+          + "[render mode] [factor] [strip height]");
+      System.exit(1);
+      return;
+    }
+    final File image = new File(args[0]);
+    final RenderMode mode = args.length > 2 ? RenderMode.valueOf(args[2])
+        : RenderMode.SORTED_BLUR_LOG;
+    final double factor = args.length > 3 ? Double.parseDouble(args[3])
+        : 12.75;
+    final int strip = args.length > 4 ? Integer.parseInt(args[4]) : STRIP;
+    new StreamRender(mode, factor, strip).render(image, Depth.getDepth(image),
+        new File(args[1]));
+  }
+
+}
@@ -0,0 +1,105 @@
+package depth;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import depth.Picture3D.RenderMode;
+
+/**
+ * The precomputed tables of a render mode and disparity factor. Since depth
+ * values are 8 bit every per pixel computation that only depends on the depth
+ * is looked up instead. Tables are immutable so a render always sees one
+ * consistent set even when the settings change meanwhile.
+ */
+final class Transfer {
+
+  /** The number of raw depth values. */
+  public static final int DEPTHS = 256;
+
+  private static final double FACTOR = Picture.MAX_COLOR
+      / Math.log(Picture.MAX_COLOR + 1);
+
+  /** The render mode. */
+  final RenderMode mode;
+
+  /** The mapped depth of every raw depth value. */
+  final double[] depth = new double[DEPTHS];
+
+  /** The horizontal distance of both eyes for every raw depth value. */
+  final int[] dist = new int[DEPTHS];
+
+  /**
+   * The drawing rank of every raw depth value. Lower ranks are farther away
+   * and drawn first. Depth values that map to the same depth share a rank.
+   */
+  final int[] rank = new int[DEPTHS];
+
+  /** The weight of the new value for every blur tap. */
+  final double[] weights;
+
+  /**
+   * The maximal distance between an input column and the output columns it
+   * affects, including the columns filled from the ones it is drawn to.
+   */
+  final int maxShift;
+
+  /**
+   * The maximal distance between a filled column and the column it is filled
+   * from or <code>0</code> when the mode does not fill.
+   */
+  final int fill;
+
+  /**
+   * Builds the tables.
+   * 
+   * @param mode The render mode.
+   * @param factor The scaled disparity factor.
+   * @param curve The depth curve or <code>null</code> to use the mapping of
+   *          the render mode.
+   */
+  public Transfer(final RenderMode mode, final double factor,
+      final DepthCurve curve) {
+    this.mode = mode;
+    int max = 0;
+    for(int d = 0; d < DEPTHS; ++d) {
+      depth[d] = curve != null ? curve.map(d) : map(d, mode.logScale);
+      dist[d] = (int) (depth[d] * factor);
+      max = Math.max(max, Math.abs(dist[d]));
+    }
+    // a hole is at most as wide as the spread of the distances
+    fill = mode.fill ? 2 * (max + mode.blur) + 1 : 0;
+    maxShift = max + mode.blur + fill;
+    final int b = mode.blur;
+    weights = new double[b + 1];
+    for(int dx = 0; dx <= b; ++dx) {
+      weights[dx] = b > 0 ? 1.0 - (double) dx / b : 1.0;
+    }
+    final Integer[] sorted = new Integer[DEPTHS];
+    for(int d = 0; d < DEPTHS; ++d) {
+      sorted[d] = d;
+    }
+    Arrays.sort(sorted, new Comparator<Integer>() {
+
+      @Override
+      public int compare(final Integer d1, final Integer d2) {
+        return Double.compare(depth[d2], depth[d1]);
+      }
+
+    });
+    int r = 0;
+    for(int i = 0; i < DEPTHS; ++i) {
+      if(i > 0 && Double.compare(depth[sorted[i]], depth[sorted[i - 1]]) != 0) {
+        ++r;
+      }
+      rank[sorted[i]] = r;
+    }
+  }
+
+  private static double map(final int depth, final boolean logScale) {
+    if(logScale) {
+      return Math.log(depth + 1) * FACTOR;
+    }
+    return depth;
+  }
+
+}
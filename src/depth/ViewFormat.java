@@ -0,0 +1,220 @@
+package depth;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ * The layout of full color views in an output image. A format receives the
+ * rendered lines of all views and packs them into its output buffer, so any
+ * number of views is rendered in one pass over the drawing order of a line.
+ */
+public abstract class ViewFormat {
+
+  /** The width of a view. */
+  protected final int width;
+
+  /** The height of a view. */
+  protected final int height;
+
+  /** The number of views. */
+  protected final int views;
+
+  private final BufferedImage img;
+
+  /** The packed output pixels. */
+  protected final int[] out;
+
+  /**
+   * Creates a format.
+   *
+   * @param width The width of a view.
+   * @param height The height of a view.
+   * @param views The number of views.
+   * @param outWidth The width of the output.
+   * @param outHeight The height of the output.
+   */
+  protected ViewFormat(final int width, final int height, final int views,
+      final int outWidth, final int outHeight) {
+    if(views < 1) {
+      throw new IllegalArgumentException("views: " + views);
+    }
+    this.width = width;
+    this.height = height;
+    this.views = views;
+    img = new BufferedImage(outWidth, outHeight, BufferedImage.TYPE_INT_RGB);
+    out = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+  }
+
+  /**
+   * Getter.
+   *
+   * @return The number of views.
+   */
+  public int getViews() {
+    return views;
+  }
+
+  /**
+   * Getter.
+   *
+   * @return The output image.
+   */
+  public BufferedImage getImage() {
+    return img;
+  }
+
+  /**
+   * Computes where a pixel of a view goes.
+   *
+   * @param view The view.
+   * @param x The x coordinate in the view.
+   * @param y The y coordinate in the view.
+   * @return The index in the output or <code>-1</code> when the pixel is not
+   *         shown.
+   */
+  protected abstract int index(int view, int x, int y);
+
+  /**
+   * Computes which channels of a pixel of a view are shown.
+   *
+   * @param view The view.
+   * @param x The x coordinate in the view.
+   * @param y The y coordinate in the view.
+   * @return The mask of the shown channels of the packed pixel.
+   */
+  protected int mask(final int view, final int x, final int y) {
+    return 0xffffff;
+  }
+
+  /**
+   * Packs a rendered line of one view into the output. Lines of different
+   * rows may be packed concurrently.
+   *
+   * @param view The view.
+   * @param y The line.
+   * @param line The packed pixels of the line.
+   */
+  protected void putLine(final int view, final int y, final int[] line) {
+    for(int x = 0; x < width; ++x) {
+      final int i = index(view, x, y);
+      if(i < 0) {
+        continue;
+      }
+      final int m = mask(view, x, y);
+      out[i] = (out[i] & ~m) | (line[x] & m);
+    }
+  }
+
+  /**
+   * Creates a format with the left view left of the right view.
+   *
+   * @param width The width of a view.
+   * @param height The height of a view.
+   * @return The format.
+   */
+  public static ViewFormat sideBySide(final int width, final int height) {
+    return new ViewFormat(width, height, 2, 2 * width, height) {
+
+      @Override
+      protected int index(final int view, final int x, final int y) {
+        return y * 2 * width + view * width + x;
+      }
+
+      @Override
+      protected void putLine(final int view, final int y, final int[] line) {
+        System.arraycopy(line, 0, out, index(view, 0, y), width);
+      }
+
+    };
+  }
+
+  /**
+   * Creates a format with the left view above the right view.
+   *
+   * @param width The width of a view.
+   * @param height The height of a view.
+   * @return The format.
+   */
+  public static ViewFormat topBottom(final int width, final int height) {
+    return new ViewFormat(width, height, 2, width, 2 * height) {
+
+      @Override
+      protected int index(final int view, final int x, final int y) {
+        return (view * height + y) * width + x;
+      }
+
+      @Override
+      protected void putLine(final int view, final int y, final int[] line) {
+        System.arraycopy(line, 0, out, index(view, 0, y), width);
+      }
+
+    };
+  }
+
+  /**
+   * Creates a format whose rows cycle through the views.
+   *
+   * @param width The width of a view.
+   * @param height The height of a view.
+   * @param views The number of views.
+   * @return The format.
+   */
+  public static ViewFormat rowInterleaved(final int width, final int height,
+      final int views) {
+    return new ViewFormat(width, height, views, width, height) {
+
+      @Override
+      protected int index(final int view, final int x, final int y) {
+        return y % views == view ? y * width + x : -1;
+      }
+
+      @Override
+      protected void putLine(final int view, final int y, final int[] line) {
+        if(y % views == view) {
+          System.arraycopy(line, 0, out, y * width, width);
+        }
+      }
+
+    };
+  }
+
+  /**
+   * Creates a format for slanted lenticular displays. Every sub pixel shows
+   * one view, cycling through the views along the sub pixels of a row and
+   * shifting by the slant from row to row.
+   *
+   * @param width The width of a view.
+   * @param height The height of a view.
+   * @param views The number of views.
+   * @param slant The number of sub pixels the views shift per row.
+   * @return The format.
+   */
+  public static ViewFormat lenticular(final int width, final int height,
+      final int views, final int slant) {
+    return new ViewFormat(width, height, views, width, height) {
+
+      private int view(final int sub, final int y) {
+        final int v = (sub + y * slant) % views;
+        return v < 0 ? v + views : v;
+      }
+
+      @Override
+      protected int index(final int view, final int x, final int y) {
+        return mask(view, x, y) != 0 ? y * width + x : -1;
+      }
+
+      @Override
+      protected int mask(final int view, final int x, final int y) {
+        int m = 0;
+        for(int c = 0; c < 3; ++c) {
+          if(view(3 * x + c, y) == view) {
+            m |= 0xff << (16 - 8 * c);
+          }
+        }
+        return m;
+      }
+
+    };
+  }
+
+}
@@ -0,0 +1,242 @@
+package depth;
+
+import java.awt.Graphics2D;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.swing.JComponent;
+
+/**
+ * Animates the eye separation of a picture. Frames are rendered on a frame
+ * paced thread into three rotating output pictures so that rendering the next
+ * frame overlaps displaying the current one. The next frame is always
+ * rendered into a picture that is neither the latest finished frame nor the
+ * frame being drawn, so drawing never waits for rendering. The component is
+ * repainted once per finished frame. When rendering falls behind the
+ * deadlines frames are dropped instead of queued.
+ */
+public final class Wiggle {
+
+  /** The default number of frames per second. */
+  public static final int FPS = 30;
+
+  /** The default duration of one oscillation in seconds. */
+  public static final double PERIOD = 1.5;
+
+  /** The weight of a new sample in the smoothed statistics. */
+  private static final double SMOOTH = 0.1;
+
+  private final Picture3D[] buffers = new Picture3D[3];
+
+  private final JComponent comp;
+
+  private final long frameNanos;
+
+  private final double period;
+
+  private final double factor;
+
+  private volatile Picture3D front;
+
+  /** The frame drawn last or being drawn. */
+  private volatile Picture3D drawing;
+
+  private volatile boolean running;
+
+  private Thread thread;
+
+  private volatile double renderMs;
+
+  private volatile double frameMs;
+
+  private volatile int dropped;
+
+  private long lastShown;
+
+  /**
+   * Creates an animation.
+   *
+   * @param pic The picture whose input and settings are used. The picture
+   *          itself is not changed.
+   * @param comp The component showing the animation.
+   * @param fps The number of frames per second.
+   * @param period The duration of one oscillation in seconds.
+   */
+  public Wiggle(final Picture3D pic, final JComponent comp, final int fps,
+      final double period) {
+    this.comp = comp;
+    this.period = period;
+    frameNanos = 1000000000L / fps;
+    factor = pic.getFactor();
+    for(int i = 0; i < buffers.length; ++i) {
+      buffers[i] = new Picture3D(pic);
+    }
+    front = buffers[0];
+  }
+
+  /**
+   * Starts the animation thread. Does nothing when already running.
+   */
+  public synchronized void start() {
+    if(running) {
+      return;
+    }
+    running = true;
+    thread = new Thread(new Runnable() {
+
+      @Override
+      public void run() {
+        animate();
+      }
+
+    }, "wiggle");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Stops the animation thread and waits for it to end.
+   */
+  public synchronized void stop() {
+    if(!running) {
+      return;
+    }
+    running = false;
+    LockSupport.unpark(thread);
+    try {
+      thread.join();
+    } catch(final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    thread = null;
+  }
+
+  public boolean isRunning() {
+    return running;
+  }
+
+  private void animate() {
+    final long begin = System.nanoTime();
+    long deadline = begin;
+    while(running) {
+      final long start = System.nanoTime();
+      final double t = (start - begin) / 1e9;
+      final Picture3D back = spare();
+      back.setFactor(factor * (0.5 + 0.5 * Math.sin(2 * Math.PI * t
+          / period)));
+      render(back);
+      final long end = System.nanoTime();
+      renderMs = smooth(renderMs, (end - start) / 1e6);
+      front = back;
+      comp.repaint();
+      deadline += frameNanos;
+      if(end > deadline) {
+        final long behind = (end - deadline) / frameNanos + 1;
+        dropped += behind;
+        deadline += behind * frameNanos;
+      }
+      long wait;
+      while(running && (wait = deadline - System.nanoTime()) > 0) {
+        LockSupport.parkNanos(this, wait);
+      }
+    }
+  }
+
+  /**
+   * Finds the picture to render the next frame into. There is always one
+   * since there are three pictures.
+   */
+  private Picture3D spare() {
+    final Picture3D f = front;
+    final Picture3D d = drawing;
+    for(final Picture3D b : buffers) {
+      if(b != f && b != d) {
+        return b;
+      }
+    }
+    throw new IllegalStateException();
+  }
+
+  private static void render(final Picture3D pic) {
+    final int h = pic.getHeight();
+    final int band = RenderScheduler.bandSize(h);
+    final CountDownLatch done = new CountDownLatch((h + band - 1) / band);
+    for(int y = 0; y < h; y += band) {
+      final int start = y;
+      final int end = Math.min(y + band, h);
+      RenderScheduler.execute(new Runnable() {
+
+        @Override
+        public void run() {
+          try {
+            for(int row = start; row < end; ++row) {
+              pic.updateLine(row);
+            }
+          } finally {
+            done.countDown();
+          }
+        }
+
+      });
+    }
+    try {
+      done.await();
+    } catch(final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static double smooth(final double old, final double sample) {
+    return old == 0 ? sample : old + SMOOTH * (sample - old);
+  }
+
+  /**
+   * Draws the latest finished frame. The frame is not rendered into while
+   * being drawn.
+   *
+   * @param g The graphics context.
+   */
+  public void draw(final Graphics2D g) {
+    Picture3D f;
+    do {
+      f = front;
+      drawing = f;
+      // a frame that is still the front after being marked is not picked
+    } while(f != front);
+    f.draw(g);
+    final long now = System.nanoTime();
+    if(lastShown != 0) {
+      frameMs = smooth(frameMs, (now - lastShown) / 1e6);
+    }
+    lastShown = now;
+  }
+
+  /**
+   * Getter.
+   *
+   * @return The smoothed number of frames drawn per second.
+   */
+  public double getFps() {
+    final double ms = frameMs;
+    return ms > 0 ? 1000 / ms : 0;
+  }
+
+  /**
+   * Getter.
+   *
+   * @return The smoothed time to render one frame in milliseconds.
+   */
+  public double getRenderMs() {
+    return renderMs;
+  }
+
+  /**
+   * Getter.
+   *
+   * @return The number of frames dropped since the start.
+   */
+  public int getDropped() {
+    return dropped;
+  }
+
+}